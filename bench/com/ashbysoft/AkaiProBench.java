@@ -0,0 +1,58 @@
+package com.ashbysoft;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import javax.sound.midi.SysexMessage;
+
+/*
+ * AkaiPro decoding of level/EQ dumps and request construction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AkaiProBench {
+
+	private AkaiPro akai = new AkaiPro();
+	private StringBuffer sb = new StringBuffer();
+	private SysexCursor cur = new SysexCursor();
+	private byte[] req = { 0x0b, 0x01, 0x00, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 };
+
+	@Benchmark
+	public StringBuffer decodeLevels() {
+		sb.setLength(0);
+		// offset 2 == after manufacturer ID, as MidiDecoder passes it
+		akai.decodeSysex(cur.set(Samples.LEVELS, 2, Samples.LEVELS.length), sb);
+		return sb;
+	}
+
+	@Benchmark
+	public StringBuffer decodeEq() {
+		sb.setLength(0);
+		akai.decodeSysex(cur.set(Samples.EQ, 2, Samples.EQ.length), sb);
+		return sb;
+	}
+
+	// built in place in a pooled message, released as TxScheduler would
+	@Benchmark
+	public int sysEx() {
+		SysexMessage m = akai.sysEx(0, 0x7a, req);
+		int n = m.getLength();
+		((PooledSysex) m).release();
+		return n;
+	}
+
+	@Benchmark
+	public int mixRequest() {
+		PooledSysex m = akai.mixRequest(0, 0x01, 0, 1, 12);
+		int n = m.getLength();
+		m.release();
+		return n;
+	}
+}
@@ -0,0 +1,87 @@
+package com.ashbysoft;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * MidiDecoder on a realistic receive mix: mostly clock and sensing, some
+ * notes/controllers and the occasional DPS mixer reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DecodeBench {
+
+	private MidiDecoder dec;
+	private MidiMessage[] mix;
+	private DecodedMsg ev = new DecodedMsg();
+	private StringBuffer sb = new StringBuffer();
+	private int i = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		final AkaiPro akai = new AkaiPro();
+		dec = new MidiDecoder(new SysexLoader() {
+			public SysexModule loadModule(String id) {
+				return akai;
+			}
+
+			public SysexModule module(int port, int mfId, int dev) {
+				return 0x47 == mfId ? akai : null;
+			}
+
+			public SysexModule identify(int port, int mfId, int dev) {
+				return module(port, mfId, dev);
+			}
+		});
+		mix = new MidiMessage[64];
+		for (int n = 0; n < mix.length; n++) {
+			if (n % 16 == 15)
+				mix[n] = Samples.sysex(Samples.LEVELS);
+			else if (n % 8 == 7)
+				mix[n] = new ShortMessage(ShortMessage.CONTROL_CHANGE, n & 0xf, 7, n);
+			else if (n % 4 == 3)
+				mix[n] = new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + n % 12, 100);
+			else if (n % 4 == 1)
+				mix[n] = new ShortMessage(ShortMessage.ACTIVE_SENSING);
+			else
+				mix[n] = new ShortMessage(ShortMessage.TIMING_CLOCK);
+		}
+	}
+
+	private MidiMessage nextMsg() {
+		return mix[i++ & (mix.length - 1)];
+	}
+
+	@Benchmark
+	public String decodeMsg() {
+		return dec.decodeMsg(nextMsg(), false);
+	}
+
+	@Benchmark
+	public DecodedMsg decodeOnly() {
+		return dec.decode(nextMsg(), -1, ev);
+	}
+
+	@Benchmark
+	public void decodeAndFormat(Blackhole bh) {
+		DecodedMsg d = dec.decode(nextMsg(), -1, ev);
+		if (dec.visible(d, false)) {
+			sb.setLength(0);
+			dec.format(d, sb);
+			bh.consume(sb);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.ashbysoft;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * RX/TX hex dump formatting (MidiFun.dumpMsg) of a short message and a
+ * mixer level dump, written to a discarding stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DumpBench {
+
+	private DumpWriter out = new DumpWriter(new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int o, int n) {
+		}
+	}, 16384, 50);
+
+	private byte[] note = { (byte) 0x90, 60, 100 };
+
+	@Benchmark
+	public void dumpShort() {
+		out.dump("RX: ", note, 0, note.length);
+	}
+
+	@Benchmark
+	public void dumpSysex() {
+		out.dump("RX: ", Samples.LEVELS, 0, Samples.LEVELS.length);
+	}
+}
@@ -0,0 +1,48 @@
+package com.ashbysoft;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.SysexMessage;
+
+/*
+ * Canned DPS12 replies for the benchmarks.
+ */
+public class Samples {
+
+	// 0x7b mixer reply: levels (kind 0), channels 1-12
+	public static final byte[] LEVELS = mixReply(0x01, 0, 12, 5);
+
+	// 0x7b mixer reply: EQ low band, channels 1-12
+	public static final byte[] EQ = mixReply(0x11, 0, 12, 7);
+
+	private static byte[] mixReply(int mc, int kind, int nch, int stride) {
+		int n = 2 + nch * stride;
+		// F0 47 dev 7B prod count mc kind, records, F7
+		byte[] b = new byte[8 + n - 2 + 1];
+		int o = 0;
+		b[o++] = (byte) 0xf0;
+		b[o++] = 0x47;
+		b[o++] = 0x00;
+		b[o++] = 0x7b;
+		b[o++] = 0x5a;
+		b[o++] = (byte) n;
+		b[o++] = (byte) mc;
+		b[o++] = (byte) kind;
+		for (int ch = 1; ch <= nch; ch++) {
+			b[o++] = (byte) ch;
+			for (int i = 1; i < stride; i++)
+				b[o++] = (byte) ((ch * 7 + i) & 0x7f);
+		}
+		b[o] = (byte) 0xf7;
+		return b;
+	}
+
+	public static SysexMessage sysex(byte[] b) {
+		SysexMessage sx = new SysexMessage();
+		try {
+			sx.setMessage(b, b.length);
+		} catch (InvalidMidiDataException e) {
+			e.printStackTrace();
+		}
+		return sx;
+	}
+}
@@ -1,50 +1,173 @@
 package com.ashbysoft;
 
-import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
 import javax.sound.midi.Receiver;
 import javax.sound.midi.SysexMessage;
 
 public class AkaiPro implements SysexModule {
 
-	private int devId = 0;
+	private volatile int devId = 0;
 	private int dpsSize = 12;
 
-	byte[] empty = new byte[0];
+	// outstanding 0x7a mixer requests
+	AkaiRequests reqs = new AkaiRequests(this);
+
+	// mixer state as last reported by the DPS, replaced when the size changes
+	volatile DpsMixer mixer = new DpsMixer(dpsSize);
+	private DpsMixer.Listener watcher = null;
+
+	// incoming MIDI clock (the DPS in MIDI Clock mode), null if not followed
+	private volatile ClockTracker clock = null;
+
+	// results of requests that complete later, System.out if not set
+	private volatile DumpWriter out = null;
+
+	// this device's tempo map as last sent (0x51), and the outstanding 0x52 request
+	private volatile TempoMap tempoMap = null;
+	private CompletableFuture<TempoMap> tempoReq = null;
 	
-	String[] chanMap = {
+	static final String[] chanMap = {
 		null, // Various master channels based on 'kind' value, see below
 		"1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12",  // TODO: DPS16+
 		"T1", "T2", "T3", "T4", "T5", "T6", "T7", "T8"
 	};
-	String[] masterMap = {
+	static final String[] masterMap = {
 		"MASTER", "A Master", "B Master", "C Master", "D Master"
 	};
-	String[] inputMap = {
+	static final String[] inputMap = {
 		"INP 1","INP 2","INP 3","INP 4","INP 5","INP 6",                // TODO: DPS16+
 		"DIGITAL-L", "DIGITAL-R", "MASTER-L", "MASTER-R",
 		"AUX A", "AUX B", "bus-l", "bus-r"
 	};
-	String [] outputNames = {
+	static final String[] outputNames = {
 		"MASTER-L", "MASTER-R", "MONITOR-L", "MONITOR-R",
 		"SEND A", "SEND B", "SEND C", "SEND D"
 	};
-	String[] outputMap = {
+	static final String[] outputMap = {
 		"MASTER-L", "MASTER-R", "MONITOR-L", "MONITOR-R",
 		"BUS-L", "BUS-R", "SEND A", "SEND B", "SEND C", "SEND D",
 		"TRK1", "TRK2", "TRK3", "TRK4", "TRK5", "TRK6", "TRK7", "TRK8",
 		"TRK9", "TRK10", "TRK11", "TRK12", "TRK13", "TRK14", "TRK15", "TRK16"
 	};
+	static final String[] bandMap = { "Low", "Mid", "High" };
+	static final String[] transportMap = {
+		"stop", null, null, "rew", "ffwd", null, null, null, "REC", "play"
+	};
+
+	/*
+	 * DPS message layouts (see SysexSchema): F0 47 <id> <fn> 5A .. F7, the
+	 * cursor is at <fn>. Mixer requests/replies carry a byte count and a
+	 * mix command; layouts of the mix commands not yet worked out are
+	 * shown in hex.
+	 */
+	static final SysexSchema SCHEMA = new SysexSchema(new String[] {
+		"07", "lock keys",
+		"08", "unlock keys",
+		"09", "lock faders",
+		"0a", "unlock faders",
+		"0e", "MTC mode",
+		"0f", "MIDI Clock mode",
+		"10", "Transport: {-}{t transport}",
+		"51", "Tempo map: {-}[bar {w}: {w 10}bpm {u}/{u} ]",
+		"52", "Tempo map request",
+		"7a", "Mixer request: {-}{n}{m}",
+		"7a.01", "levels ({k master}) [{u} ]",
+		"7a.02", "input map {-}[{u} ]",
+		"7a.03", "output map {-}[{u} ]",
+		"7a.04", "effect inserts {-}[{u} ]",
+		"7a.11", "EQ ({k band}) [{u} ]",
+		"7b", "Mixer: {-}{n}{m}",
+		"7b.00", "NOP",
+		"7b.01", "levels: {k}[{t chan|master}={u}/{-}{u} {-}]",
+		"7b.02", "input map: {-}[{t chan}<-{t input} ]",
+		"7b.03", "output map: {-}[{t outs}->{t route} ]",
+		"7b.04", "effect insert: {x}",
+		"7b.11", "EQ ({k band}): [{t chan}={u}/{-}{u}/{-}{u}/ {-}]",
+		"7b.21", "channel/bus switch: {x}",
+		"7b.22", "EQ switch: {x}",
+		"7b.23", "AUX pre/post switch: {x}",
+		"7b.24", "SOLO/MUTE switch: {x}",
+		"7b.31", "thru mix switch: {x}",
+		"7b.61", "effect type: {x}",
+		"7b.62", "effect param: {x}",
+		"7b.63", "effect on/off: {x}",
+		"7b.71", "EQ setting: {x}",
+		"7b.72", "AUX setting: {x}",
+		"7b.73", "extra bus setting: {x}",
+		"7b.74", "control via MIDI: {x}",
+		"7b.75", "master out setting: {x}",
+		"7b.76", "V.Track name: {x}",
+		"7c", "Other request: {-}{x}",
+		"7d", "Other: {-}{x}",
+	}, new Object[] {
+		"chan", chanMap, "master", masterMap, "input", inputMap, "outs", outputNames, "route", outputMap,
+		"band", bandMap, "transport", transportMap,
+	});
 	
 	public AkaiPro() {
 		System.err.println("AkaiPro/DPS MIDI SysEx module");
 		System.err.println("-----------------------------");
 	}
 
+	public int[] getManufacturers() {
+		return new int[] { 0x47 };
+	}
+
+	public void setDevice(int id) {
+		CompletableFuture<TempoMap> t;
+		synchronized (this) {
+			if (id == devId)
+				return;
+			devId = id;
+			// the tempo map belongs to the old device, and so does the reply still awaited
+			tempoMap = null;
+			t = tempoReq;
+			tempoReq = null;
+		}
+		if (t != null)
+			t.completeExceptionally(new IllegalStateException("device changed to " + id));
+	}
+
+	public void setClock(ClockTracker clock) {
+		this.clock = clock;
+	}
+
+	public void setOutput(DumpWriter out) {
+		this.out = out;
+	}
+
+	private void println(String s) {
+		DumpWriter o = out;
+		if (o != null)
+			o.println(s);
+		else
+			System.out.println(s);
+	}
+
+	public CompletableFuture<Void> idle() {
+		CompletableFuture<TempoMap> t;
+		synchronized (this) {
+			t = tempoReq;
+		}
+		return t == null ? reqs.idle() : CompletableFuture.allOf(reqs.idle(), t);
+	}
+
 	public String[] getCommands() {
 		return new String[] { "dev[ice] <id>",
 			"[un]lock k[eys]|f[aders]",
-			"tr[ansport] s[top]|p[lay]|REC|r[ew]|f[wd]",
+			"tr[ansport] [s[top]|p[lay]|REC|r[ew]|f[wd]]",
 			"mix[er] l[evels]|a|b|c|d|i[nputs]|o[utputs]|ef[fects]|eq[l|m|h] [<begin channel> <end channel>]",
+			"mix[er] all",
+			"mix[er] save|recall <file>",
+			"req[uests] [<window> <timeout ms> <retries>]",
+			"state [<channel>|all|changes|watch]",
+			"tempo [get|[[<h>:]<m>:]<s>[.<s>]|bar <bar>[.<beat>]]",
 			"oth[er]"
 		};
 	}
@@ -56,8 +179,12 @@ public class AkaiPro implements SysexModule {
 			// Select device ID
 			String id = arg(cmd);
 			if (id != null) {
-				devId = Integer.parseInt(id);
-				res = "Device: " + devId;
+				try {
+					setDevice(Integer.parseInt(id));
+					res = "Device: " + devId;
+				} catch (NumberFormatException e) {
+					res = "invalid device: " + id;
+				}
 			}
 		} else if (cmd.startsWith("lock") || cmd.startsWith("un")) {
 			// [Un]Lock something...
@@ -65,38 +192,55 @@ public class AkaiPro implements SysexModule {
 			String p = u > 0 ? "Un-" : "";
 			String t = arg(cmd);
 			if (t != null && t.startsWith("k")) {
-				rcv.send(sysEx(devId, 0x07 + u, empty), -1);
+				rcv.send(frame(devId, 0x07 + u, 0).put(0xf7), -1);
 				res = p + "Locked keys";
 			} else if (t != null && t.startsWith("f")) {
-				rcv.send(sysEx(devId, 0x09 + u, empty), -1);
+				rcv.send(frame(devId, 0x09 + u, 0).put(0xf7), -1);
 				res = p + "Locked faders";
 			}
 		} else if (cmd.startsWith("tr")) {
 			// Transport controls
 			String s = arg(cmd);
 			if (s != null) {
-				byte[] b = new byte[1];
+				int b;
 				if (s.startsWith("s")) {
-					b[0] = 0x00;                     // Stop
+					b = 0x00;                     // Stop
 				} else if (s.startsWith("p")) {
-					b[0] = 0x09;                     // Play
+					b = 0x09;                     // Play
 				} else if (s.equals("REC")) {
-					b[0] = 0x08;                     // Record
+					b = 0x08;                     // Record
 				} else if (s.startsWith("r")) {
-					b[0] = 0x03;                     // Rewind
+					b = 0x03;                     // Rewind
 				} else if (s.startsWith("f")) {
-					b[0] = 0x04;                     // Fast Forward
+					b = 0x04;                     // Fast Forward
 				} else {
-					s = null;
+					b = -1;
 				}
-				if (s != null) {
-					rcv.send(sysEx(devId, 0x10, b), -1);
+				if (b >= 0) {
+					rcv.send(frame(devId, 0x10, 1).put(b).put(0xf7), -1);
+				} else {
+					res = "Invalid transport command";
 				}
 			} else {
-				res = "Invalid transport command";
+				// Where the DPS clock says we are
+				ClockTracker c = clock;
+				res = "Transport: " + (c != null ? c.getState() : "no clock tracker");
 			}
 		} else if (cmd.startsWith("mix")) {
 			res = mixCommand(cmd, rcv);
+		} else if (cmd.startsWith("state")) {
+			res = stateCommand(arg(cmd));
+		} else if (cmd.startsWith("tempo")) {
+			res = tempoCommand(arg(cmd), rcv);
+		} else if (cmd.startsWith("req")) {
+			String[] a = cmd.trim().split("\\s+");
+			try {
+				if (a.length == 4)
+					reqs.configure(Integer.parseInt(a[1]), Long.parseLong(a[2]), Integer.parseInt(a[3]));
+				res = reqs.toString();
+			} catch (NumberFormatException e) {
+				res = "invalid req value: " + e.getMessage();
+			}
 		} else if (cmd.startsWith("oth")) {
 			res = "DPS16 other data requests not implemented - sorry!";
 		}
@@ -120,9 +264,34 @@ public class AkaiPro implements SysexModule {
 			}
 		}
 		String inf = " (" + cb + "->" + ce + ") requested";
-		if (s != null && s.startsWith("l")) {
+		if (s != null && (s.startsWith("save") || s.startsWith("recall"))) {
+			String f = arg(s);
+			if (f == null)
+				return "Mixer " + s + " needs a file name";
+			try {
+				if (s.startsWith("save")) {
+					mixer.save(new File(f));
+					res = "Mixer state saved to " + f;
+				} else {
+					res = recall(DpsMixer.load(new File(f)), rcv);
+				}
+			} catch (IOException ioe) {
+				res = "Mixer " + ioe;
+			}
+		} else if (s != null && s.startsWith("all")) {
+			final long t0 = System.currentTimeMillis();
+			requestAll(rcv).whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void v, Throwable ex) {
+					if (ex != null)
+						println("AkaiPro: Mixer state incomplete: " + ex.getMessage());
+					else
+						println("AkaiPro: Mixer state received in " + (System.currentTimeMillis() - t0) + "ms");
+				}
+			});
+			res = "Mixer full state requested";
+		} else if (s != null && s.startsWith("l")) {
 			// Mixer level request, get level & pan for selected channels
-			rcv.send(sysEx(devId, 0x7A, mix(0x01, 0, cb, ce-cb+1)), -1);
+			reqs.submit(rcv, devId, 0x01, 0, cb, ce-cb+1);
 			res = "Mixer levels" + inf;
 		} else if (s != null &&
 			(s.startsWith("a") ||
@@ -131,18 +300,18 @@ public class AkaiPro implements SysexModule {
 			 s.startsWith("d"))) {
 			// Mixer aux send request
 			int kind = s.charAt(0)-'a'+1;
-			rcv.send(sysEx(devId, 0x7A, mix(0x01, kind, cb, ce-cb+1)), -1);
+			reqs.submit(rcv, devId, 0x01, kind, cb, ce-cb+1);
 			res = "Mixer aux send ("+(char)(kind-1+'A')+")" + inf;
 		} else if (s != null && s.startsWith("i")) {
 			// Mixer input assign request
-			rcv.send(sysEx(devId, 0x7A, mix(0x02, 0, cb, ce-cb+1)), -1);
+			reqs.submit(rcv, devId, 0x02, 0, cb, ce-cb+1);
 			res = "Mixer input assign" + inf;
 		} else if (s != null && s.startsWith("o")) {
 			// Mixer output assign request, only for 16+
 			if (dpsSize < 16) {
 				res = "Mixer output assign only possible on DPS16 and above";
 			} else {
-				rcv.send(sysEx(devId, 0x7A, mix(0x03, 0, 0, outputNames.length)), -1);
+				reqs.submit(rcv, devId, 0x03, 0, 0, outputNames.length);
 				res = "Mixer output assign requested";
 			}
 		} else if (s != null && s.startsWith("ef")) {
@@ -150,13 +319,13 @@ public class AkaiPro implements SysexModule {
 			if (dpsSize < 16) {
 				res = "Mixer effect inserts only possible on DPS16 and above";
 			} else {
-				rcv.send(sysEx(devId, 0x7A, mix(0x04, 0, cb, ce-cb+1)), -1);
+				reqs.submit(rcv, devId, 0x04, 0, cb, ce-cb+1);
 				res = "Mixer effect inserts" + inf;
 			}
 		} else if (s != null && s.startsWith("eq")) {
 			char c = s.length() > 2 ? s.charAt(2) : ' ';
 			int band = (c == 'h') ? 2 : (c == 'm') ? 1 : 0;
-			rcv.send(sysEx(devId, 0x7A, mix(0x11, band, cb, ce-cb+1)), -1);
+			reqs.submit(rcv, devId, 0x11, band, cb, ce-cb+1);
 			res = "Mixer eq (" +c+") requested";
 		}
 		return res;
@@ -187,149 +356,289 @@ public class AkaiPro implements SysexModule {
 		return null;
 	}
 
-	private byte[] mix(int mc, int kind, int beg, int nch) {
-		int size = 2 + (kind < 0 ? 0 : 1) + (nch < 0 ? 0 : nch);
-		byte[] r = new byte[size];
-		r[0] = (byte) (size - 1);
-		r[1] = (byte) mc;
-		int o = 2;
-		if (kind >= 0) {
-			r[o++] = (byte) kind;
-		}
-		if (nch > 0) {
-			for (int ch = 0; ch < nch; ch++) {
-				r[o + ch] = (byte) (beg + ch);
+	/*
+	 * Tempo map, cached per device: requested when first needed (or on
+	 * "tempo get"), after that conversions are answered locally.
+	 */
+	private String tempoCommand(final String s, Receiver rcv) {
+		TempoMap m = tempoMap;
+		if (s != null && s.startsWith("g")) {
+			m = null;
+		} else if (s != null && !s.startsWith("bar")) {
+			try {
+				parseTime(s);
+			} catch (NumberFormatException e) {
+				return "Invalid tempo command";
 			}
 		}
-		return r;
+		if (m != null)
+			return convert(m, s);
+		requestTempo(rcv).whenComplete(new BiConsumer<TempoMap, Throwable>() {
+			public void accept(TempoMap t, Throwable ex) {
+				if (ex != null)
+					println("AkaiPro: No tempo map: " + ex);
+				else
+					println("AkaiPro: " + convert(t, s != null && s.startsWith("g") ? null : s));
+			}
+		});
+		return "Tempo map requested";
 	}
 
-	private SysexMessage sysEx(int id, int fn, byte[] data) {
-		SysexMessage sx = new SysexMessage();
-		byte[] b = new byte[5 + data.length];
-		b[0] = 0x47;
-		b[1] = (byte) id;
-		b[2] = (byte) fn;
-		b[3] = 0x5A;
-		System.arraycopy(data, 0, b, 4, data.length);
-		b[4 + data.length] = (byte) 0xf7;
+	private String convert(TempoMap m, String s) {
+		if (s == null)
+			return m.toString();
+		StringBuffer sb = new StringBuffer("Tempo: ");
 		try {
-			sx.setMessage(SysexMessage.SYSTEM_EXCLUSIVE, b, b.length);
-		} catch (InvalidMidiDataException e) {
-			e.printStackTrace();
+			long us;
+			if (s.startsWith("bar")) {
+				String[] bb = s.substring(3).trim().split("\\.");
+				us = m.timeOf(Integer.parseInt(bb[0]), bb.length > 1 ? Integer.parseInt(bb[1]) : 1);
+			} else {
+				us = parseTime(s);
+			}
+			long ms = us / 1000;
+			sb.append(ms / 3600000).append(':').append(ms / 600000 % 6).append(ms / 60000 % 10).append(':');
+			sb.append(ms / 10000 % 6).append(ms / 1000 % 10).append('.').append(ms / 100 % 10).append(" = bar ");
+			m.appendPosition(sb, us).append(" at ").append(m.tempoAt(us) / 10.0).append("bpm");
+		} catch (NumberFormatException e) {
+			return "Invalid tempo command";
 		}
-		return sx;
+		return sb.toString();
 	}
 
-	public void idInfo(int mf, int family, int product, int version) {
-		// Check for DPS12/16/24
+	// "[[h:]m:]s[.s]" -> us
+	private static long parseTime(String s) {
+		String[] f = s.trim().split(":");
+		if (f.length > 3)
+			throw new NumberFormatException(s);
+		double t = 0;
+		for (int i = 0; i < f.length; i++)
+			t = t * 60 + (i < f.length - 1 ? Integer.parseInt(f[i]) : Double.parseDouble(f[i]));
+		return Math.round(t * 1e6);
+	}
+
+	// The 0x51 reply to a 0x52 request, one request at a time
+	synchronized CompletableFuture<TempoMap> requestTempo(Receiver rcv) {
+		if (tempoReq == null) {
+			final CompletableFuture<TempoMap> f = new CompletableFuture<TempoMap>();
+			tempoReq = f;
+			f.orTimeout(2000, TimeUnit.MILLISECONDS).whenComplete(new BiConsumer<TempoMap, Throwable>() {
+				public void accept(TempoMap t, Throwable ex) {
+					synchronized (AkaiPro.this) {
+						if (tempoReq == f)
+							tempoReq = null;
+					}
+				}
+			});
+			rcv.send(frame(devId, 0x52, 0).put(0xf7), -1);
+		}
+		return tempoReq;
+	}
+
+	private String stateCommand(String s) {
+		DpsMixer m = mixer;
+		StringBuffer sb = new StringBuffer("Mixer state (DPS" + m.getSize() + ", " + m.getUpdates() + " updates)");
+		if (s == null || s.startsWith("all")) {
+			for (int ch = 0; ch <= m.getChannels(); ch++) {
+				if (m.isKnownChannel(ch))
+					sb.append("\n  ").append(m.show(ch));
+			}
+			sb.append("\n  outputs:");
+			for (int o = 0; o < outputNames.length; o++) {
+				int sl = m.slot(DpsMixer.OUTPUT, o, 0);
+				if (m.isKnown(sl))
+					sb.append(' ').append(outputNames[o]).append("->").append(outputMap[m.get(sl) % outputMap.length]);
+			}
+		} else if (s.startsWith("ch")) {
+			for (int sl = m.nextDirty(0); sl >= 0; sl = m.nextDirty(sl + 1))
+				sb.append("\n  ").append(m.describe(sl)).append('=').append(m.get(sl));
+			m.clearDirty();
+		} else if (s.startsWith("w")) {
+			if (watcher == null) {
+				watcher = new DpsMixer.Listener() {
+					public void mixChanged(DpsMixer mix, int slot, int oldVal, int newVal) {
+						println("AkaiPro: " + mix.describe(slot) + ": " + oldVal + " -> " + newVal);
+					}
+				};
+				m.addListener(watcher);
+				sb.append(": watching");
+			} else {
+				m.removeListener(watcher);
+				watcher = null;
+				sb.append(": not watching");
+			}
+		} else {
+			try {
+				sb.append("\n  ").append(m.show(Integer.parseInt(s)));
+			} catch (Exception e) {
+				return "Invalid state command";
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Send only what differs between the live mixer and a snapshot, as 0x7b
+	 * blocks with as many channels per message as the byte count allows.
+	 * The live copy is set as they go out (DpsMixer locks against replies
+	 * being applied at the same time).
+	 */
+	String recall(DpsMixer snap, Receiver rcv) {
+		DpsMixer live = mixer;
+		if (snap.getSize() != live.getSize())
+			return "Snapshot is for a DPS" + snap.getSize() + ", this is a DPS" + live.getSize();
+		int[] cnt = new int[2];
+		int[] lp = { DpsMixer.LEVEL, DpsMixer.PAN };
+		int[] in = { DpsMixer.INPUT };
+		int[] eq = { DpsMixer.EQ_GAIN, DpsMixer.EQ_FREQ, DpsMixer.EQ_Q };
+		for (int kind = 0; kind < 5; kind++)
+			recallGroup(live, snap, rcv, 0x01, kind, lp, 0, cnt);
+		recallGroup(live, snap, rcv, 0x02, 0, in, 1, cnt);
+		for (int band = 0; band < 3; band++)
+			recallGroup(live, snap, rcv, 0x11, band, eq, 1, cnt);
+		if (dpsSize >= 16)
+			recallGroup(live, snap, rcv, 0x03, 0, new int[] { DpsMixer.OUTPUT }, 0, cnt);
+		return "Mixer recalled: " + cnt[1] + " changed channel settings in " + cnt[0] + " messages";
+	}
+
+	private void recallGroup(DpsMixer live, DpsMixer snap, Receiver rcv, int mc, int kind, int[] types, int first, int[] cnt) {
+		int st = stride(mc);
+		int max = (127 - 2) / st;
+		boolean outs = 0x03 == mc;
+		int last = outs ? outputNames.length - 1 : live.getChannels();
+		byte[] recs = new byte[max * st];
+		int n = 0;
+		for (int ch = first; ch <= last; ch++) {
+			boolean diff = false;
+			for (int t = 0; t < types.length; t++)
+				diff |= live.differs(snap, outs ? live.slot(types[t], ch, 0) : live.slot(types[t], kind, ch), 1);
+			if (!diff)
+				continue;
+			int o = n * st;
+			recs[o] = (byte) ch;
+			for (int t = 0; t < types.length; t++) {
+				int sl = outs ? live.slot(types[t], ch, 0) : live.slot(types[t], kind, ch);
+				int v = snap.isKnown(sl) ? snap.get(sl) : live.get(sl);
+				recs[o + 1 + 2 * t] = (byte) v;
+				live.set(sl, v);
+			}
+			if (++n == max) {
+				sendBlock(rcv, mc, kind, recs, n * st);
+				cnt[0]++;
+				cnt[1] += n;
+				n = 0;
+				recs = new byte[max * st];
+			}
+		}
+		if (n > 0) {
+			sendBlock(rcv, mc, kind, recs, n * st);
+			cnt[0]++;
+			cnt[1] += n;
+		}
+	}
+
+	private void sendBlock(Receiver rcv, int mc, int kind, byte[] recs, int len) {
+		PooledSysex m = frame(devId, 0x7B, 3 + len);
+		m.put(2 + len).put(mc).put(kind).put(recs, 0, len).put(0xf7);
+		rcv.send(m, -1);
+	}
+
+	// Pipelined request of the whole mixer, completes when every reply is in
+	public CompletableFuture<Void> requestAll(Receiver rcv) {
+		ArrayList<CompletableFuture<byte[]>> fs = new ArrayList<CompletableFuture<byte[]>>();
+		for (int kind = 0; kind < 5; kind++)
+			fs.add(reqs.submit(rcv, devId, 0x01, kind, 1, dpsSize));
+		fs.add(reqs.submit(rcv, devId, 0x02, 0, 1, dpsSize));
+		if (dpsSize >= 16)
+			fs.add(reqs.submit(rcv, devId, 0x03, 0, 0, outputNames.length));
+		for (int band = 0; band < 3; band++)
+			fs.add(reqs.submit(rcv, devId, 0x11, band, 1, dpsSize));
+		return CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[fs.size()]));
+	}
+
+	// Start an Akai frame: F0 47 <id> <fn> 5A, room for 'payload' more bytes and F7
+	PooledSysex frame(int id, int fn, int payload) {
+		return PooledSysex.obtain(6 + payload).put(0xf0).put(0x47).put(id).put(fn).put(0x5a);
+	}
+
+	// 0x7a mixer request for nch channels from beg, built in place
+	PooledSysex mixRequest(int id, int mc, int kind, int beg, int nch) {
+		int size = 2 + (kind < 0 ? 0 : 1) + (nch < 0 ? 0 : nch);
+		PooledSysex m = frame(id, 0x7A, size);
+		m.put(size - 1).put(mc);
+		if (kind >= 0) {
+			m.put(kind);
+		}
+		for (int ch = 0; ch < nch; ch++) {
+			m.put(beg + ch);
+		}
+		return m.put(0xf7);
+	}
+
+	SysexMessage sysEx(int id, int fn, byte[] data) {
+		return frame(id, fn, data.length).put(data, 0, data.length).put(0xf7);
+	}
+
+	// DPS12/16/24 from the identity reply product code, 0 if not a DPS
+	static int dpsSize(int product) {
 		if (product == 0x0c00)
-			dpsSize = 12;
+			return 12;
 		else if (product == 0x1000)
-			dpsSize = 16;
+			return 16;
 		else if (product == 0x1800)
-			dpsSize = 24;
-		System.err.println("Identified DPS" + dpsSize);
+			return 24;
+		return 0;
 	}
-	
-	public void decodeSysex(byte[] b, int o, StringBuffer sb) {
-		// decode AkaiPro SysEx messages
-		// skip dev id
-		o++;
-		// read function code
-		byte fn = b[o++];
-		if (0x07 == fn) {
-			sb.append(": lock keys");
-		} else if (0x08 == fn) {
-			sb.append(": unlock keys");
-		} else if (0x09 == fn) {
-			sb.append(": lock faders");
-		} else if (0x0a == fn) {
-			sb.append(": unlock faders");
-		} else if (0x0e == fn) {
-			sb.append(": MTC mode");
-		} else if (0x0f == fn) {
-			sb.append(": MIDI Clock mode");
-		} else if (0x10 == fn) {
-			sb.append(": Transport: TODO");
-		} else if (0x51 == fn) {
-			sb.append(": Temop map: TODO");
-		} else if (0x52 == fn) {
-			sb.append(": Tempo map request?");
-		} else if (0x7a == fn) {
-			sb.append(": Mixer request?");
-		} else if (0x7b == fn) {
-			sb.append(": Mixer");
-			decodeMix(b, o, sb);
-		} else if (0x7c == fn) {
-			sb.append(": Other request?");
-		} else if (0x7d == fn) {
-			sb.append(": Other: TODO");
+
+	public void idInfo(int mf, int family, int product, int version) {
+		int size = dpsSize(product);
+		if (size > 0)
+			dpsSize = size;
+		System.err.println("Identified DPS" + dpsSize);
+		if (mixer.getSize() != dpsSize) {
+			DpsMixer m = new DpsMixer(dpsSize);
+			if (watcher != null)
+				m.addListener(watcher);
+			mixer = m;
 		}
 	}
 	
-	private void decodeMix(byte[] b, int o, StringBuffer sb) {
-		// decode mixer settings
-		// skip product number
-		o++;
-		// read byte count and mix command
-		byte n = b[o++];
-		byte c = b[o++];
-		if (0x00 == c) {
-			sb.append(": NOP");
-		} else if (0x01 == c) {
-			sb.append(": levels: ");
-			// read level kind
-			byte k = b[o++];
-			// calculate number of channels from byte count
-			int nch = ((int)n - 2)/5;
-			for (int ch = 0; ch < nch && o < b.length; ch++) {
-				byte cv = b[o++];
-				String nm = (cv != 0) ? chanMap[cv % chanMap.length] : masterMap[k % masterMap.length];
-				sb.append(nm).append('=').append(b[o++]).append('/');
-				o++;
-				sb.append(b[o++]).append(' ');
-				o++;
-			}
-		} else if (0x02 == c) {
-		sb.append(": input map: ");
-			// skip reserved byte
-			o++;
-			// calculate number of channels from byte count
-			int nch = ((int)n - 2)/2;
-			for (int ch = 0; ch < nch && o < b.length; ch++) {
-				sb.append(chanMap[b[o++] % chanMap.length]).append("<-");
-				sb.append(inputMap[b[o++] % inputMap.length]).append(' ');
-			}
-		} else if (0x03 == c) {
-			sb.append(": output map: ");
-			// skip reserved byte
-			o++;
-			// calculate number of channels from byte count
-			int nch = ((int)n - 2)/2;
-			for (int ch = 0; ch < nch && o < b.length; ch++) {
-				sb.append(outputNames[b[o++] % outputNames.length]).append("->");
-				sb.append(outputMap[b[o++] % outputMap.length]).append(' ');
-			}
-			
-		} else if (0x04 == c) {
-			sb.append(": effect insert: TODO");
-		} else if (0x11 == c) {
-			byte bnd = b[o++];
-			String band = (bnd == 2) ? "High" : (bnd == 1) ? "Mid" : "Low";
-			sb.append(": EQ (").append(band).append("): ");
-			int nch = ((int)n - 2)/7;
-			for (int ch = 0; ch < nch && o < b.length; ch++) {
-				sb.append(chanMap[b[o++] % chanMap.length]).append('=');
-				sb.append(b[o++]).append('/');
-				o++;
-				sb.append(b[o++]).append('/');
-				o++;
-				sb.append(b[o++]).append("/ ");
-				o++;
+	static String hex(int v) {
+		String s = Integer.toHexString(v);
+		return (v < 16) ? "0"+s : s;
+	}
+
+	// Bytes per channel record in a 0x7b reply, 0 if unknown
+	static int stride(int mc) {
+		return SCHEMA.stride(0x7b, mc);
+	}
+
+	// Number of channel records in the 0x7b reply at b[o] (device ID)
+	static int replyChannels(byte[] b, int o) {
+		int st = stride(b[o + 4]);
+		return st > 0 ? (b[o + 3] - 2) / st : 0;
+	}
+
+	public void handleSysex(byte[] b, int o, int e) {
+		if (o + 1 < e && 0x7b == b[o + 1] && b[o] == devId) {
+			mixer.update(b, o, e);
+			reqs.reply(b, o, e);
+		} else if (o + 1 < e && 0x51 == b[o + 1] && b[o] == devId) {
+			TempoMap m = TempoMap.decode(b, o, e);
+			tempoMap = m;
+			CompletableFuture<TempoMap> f;
+			synchronized (this) {
+				f = tempoReq;
 			}
-		} else {
-			sb.append(": unimplemented command: TODO!");
+			if (f != null)
+				f.complete(m);
 		}
 	}
+
+	public void decodeSysex(SysexCursor c, StringBuffer sb) {
+		// decode AkaiPro SysEx messages
+		// skip dev id
+		c.skip(1);
+		SCHEMA.decode(c, sb);
+	}
 }
@@ -0,0 +1,209 @@
+package com.ashbysoft;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import javax.sound.midi.Receiver;
+
+/*
+ * Tracks outstanding AkaiPro 0x7a mixer requests and completes them when
+ * the matching 0x7b reply arrives. Requests are keyed by (device, mix
+ * command, kind/band, channel range); a reply that does not cover exactly
+ * the requested channels completes the oldest request with the same
+ * device/command/kind. Up to 'window' requests are in flight at once, the
+ * rest queue behind them. Unanswered requests are re-sent after 'timeout'
+ * ms, up to 'retries' times, then fail with a TimeoutException.
+ */
+public class AkaiRequests implements Runnable {
+
+	class Req {
+		int dev, mc, kind, beg, nch;
+		Receiver rcv;
+		int tries = 0;
+		long deadline = 0;
+		CompletableFuture<byte[]> f = new CompletableFuture<byte[]>();
+
+		boolean same(int d, int m, int k) {
+			return dev == d && mc == m && kind == k;
+		}
+
+		boolean exact(int b, int n) {
+			return beg == b && nch == n;
+		}
+	}
+
+	private AkaiPro akai;
+	private int window = 4;
+	private long timeout = 500;
+	private int retries = 2;
+
+	private ArrayDeque<Req> queued = new ArrayDeque<Req>();
+	private List<Req> inflight = new ArrayList<Req>();
+	private Thread timer = null;
+	private CompletableFuture<Void> idle = null;
+
+	private long sent = 0, answered = 0, resent = 0, failed = 0, unmatched = 0;
+
+	public AkaiRequests(AkaiPro akai) {
+		this.akai = akai;
+	}
+
+	public synchronized void configure(int window, long timeout, int retries) {
+		this.window = Math.max(1, window);
+		this.timeout = timeout;
+		this.retries = retries;
+	}
+
+	public synchronized CompletableFuture<byte[]> submit(Receiver rcv, int dev, int mc, int kind, int beg, int nch) {
+		Req r = new Req();
+		r.rcv = rcv;
+		r.dev = dev;
+		r.mc = mc;
+		r.kind = kind;
+		r.beg = beg;
+		r.nch = nch;
+		queued.add(r);
+		pump();
+		if (timer == null) {
+			timer = new Thread(this, "AkaiPro-requests");
+			timer.setDaemon(true);
+			timer.start();
+		}
+		notifyAll();
+		return r.f;
+	}
+
+	// Completes once nothing is queued or in flight
+	public synchronized CompletableFuture<Void> idle() {
+		if (inflight.isEmpty() && queued.isEmpty())
+			return CompletableFuture.completedFuture(null);
+		if (idle == null)
+			idle = new CompletableFuture<Void>();
+		return idle;
+	}
+
+	// The idle() future to complete (outside the lock), if there is nothing left to do
+	private CompletableFuture<Void> nowIdle() {
+		CompletableFuture<Void> f = null;
+		if (inflight.isEmpty() && queued.isEmpty()) {
+			f = idle;
+			idle = null;
+		}
+		return f;
+	}
+
+	// Send queued requests while there is room in the window
+	private void pump() {
+		while (inflight.size() < window && !queued.isEmpty()) {
+			Req r = queued.poll();
+			inflight.add(r);
+			send(r);
+		}
+	}
+
+	private void send(Req r) {
+		r.tries++;
+		r.deadline = System.currentTimeMillis() + timeout;
+		r.rcv.send(akai.mixRequest(r.dev, r.mc, r.kind, r.beg, r.nch), -1);
+		sent++;
+	}
+
+	/*
+	 * A 0x7b reply: b[o] is the device ID, e is the end of the message.
+	 * Returns true if it matched an outstanding request.
+	 */
+	public boolean reply(byte[] b, int o, int e) {
+		if (o + 6 > e)
+			return false;
+		int dev = b[o];
+		int mc = b[o + 4];
+		int kind = b[o + 5];
+		int nch = AkaiPro.replyChannels(b, o);
+		// channel of the first record (the first field of "7b.<mc>")
+		int[] f = AkaiPro.SCHEMA.fields(0x7b, mc);
+		int p = o + 1 + AkaiPro.SCHEMA.recordStart(0x7b, mc) + (f != null ? f[0] : 0);
+		int beg = nch > 0 && p < e ? b[p] : 0;
+		Req m = null;
+		CompletableFuture<Void> done;
+		synchronized (this) {
+			for (Iterator<Req> it = inflight.iterator(); it.hasNext();) {
+				Req r = it.next();
+				if (r.same(dev, mc, kind) && (m == null || r.exact(beg, nch))) {
+					m = r;
+					if (r.exact(beg, nch))
+						break;
+				}
+			}
+			if (m == null) {
+				unmatched++;
+				return false;
+			}
+			inflight.remove(m);
+			answered++;
+			pump();
+			done = nowIdle();
+		}
+		byte[] copy = new byte[e - o];
+		System.arraycopy(b, o, copy, 0, copy.length);
+		m.f.complete(copy);
+		if (done != null)
+			done.complete(null);
+		return true;
+	}
+
+	public void run() {
+		while (true) {
+			List<Req> dead = new ArrayList<Req>();
+			CompletableFuture<Void> done;
+			synchronized (this) {
+				try {
+					if (inflight.isEmpty())
+						wait();
+					else
+						wait(Math.max(1, nextDeadline() - System.currentTimeMillis()));
+				} catch (InterruptedException ie) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				for (Iterator<Req> it = inflight.iterator(); it.hasNext();) {
+					Req r = it.next();
+					if (r.deadline > now)
+						continue;
+					if (r.tries <= retries) {
+						resent++;
+						send(r);
+					} else {
+						it.remove();
+						failed++;
+						dead.add(r);
+					}
+				}
+				pump();
+				done = nowIdle();
+			}
+			for (Req r : dead) {
+				r.f.completeExceptionally(new TimeoutException("No reply to mixer request " +
+					AkaiPro.hex(r.mc) + "/" + r.kind + " (" + r.beg + "+" + r.nch + ") after " + r.tries + " tries"));
+			}
+			if (done != null)
+				done.complete(null);
+		}
+	}
+
+	private long nextDeadline() {
+		long d = Long.MAX_VALUE;
+		for (Req r : inflight)
+			d = Math.min(d, r.deadline);
+		return d;
+	}
+
+	public synchronized String toString() {
+		return "requests: sent " + sent + " answered " + answered + " resent " + resent + " failed " + failed +
+			" unmatched " + unmatched + " in flight " + inflight.size() + " queued " + queued.size() +
+			" (window " + window + ", timeout " + timeout + "ms, retries " + retries + ")";
+	}
+}
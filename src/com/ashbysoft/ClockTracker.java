@@ -0,0 +1,211 @@
+package com.ashbysoft;
+
+/*
+ * MIDI clock follower. Runs as a pipeline filter (ahead of the display
+ * filter, everything is passed on) and sees every clock (0xF8), start,
+ * continue, stop and song position pointer message with its receive
+ * timestamp.
+ *
+ * Tempo comes from the tick interval (24 per beat) through a one-pole
+ * low pass filter (1/8 per tick, so it settles within a beat); three
+ * ticks in a row more than 25% away from the estimate restart it there,
+ * so a tempo change is followed at once and a single late tick is not.
+ * A gap of more than 250ms is a clock dropout. Song position is counted
+ * in ticks while playing, from 0 on start or the last SPP (16ths), and
+ * shown as bar:beat:tick for the configured beats per bar.
+ *
+ * Instead of one line per tick, a status line is printed at most every
+ * interval while the clock or transport state changes. Written by the
+ * consumer thread only, readers may see slightly stale values.
+ */
+public class ClockTracker implements Pipeline.Filter, Runnable {
+
+	public static final int PPQN = 24;
+	private static final long MAX_GAP_US = 250000;
+
+	// transport
+	private volatile boolean playing = false;
+	private volatile long ticks = 0;
+	private volatile int beatsPerBar = 4;
+
+	// tempo
+	private long lastUs = -1;
+	private volatile double interval = 0;
+	private int outliers = 0;
+
+	// counters
+	private volatile long clocks = 0;
+	private long starts = 0, continues = 0, stops = 0, spps = 0, dropouts = 0;
+
+	// status line
+	private DumpWriter out;
+	private volatile long statusMillis = 1000;
+	private volatile boolean running = false;
+	private Thread printer;
+	private long shownClocks = 0;
+	private boolean shownPlaying = false;
+
+	public ClockTracker(DumpWriter out) {
+		this.out = out;
+	}
+
+	public boolean accept(byte[] b, int o, int n, long ts) {
+		int st = ((int) b[o]) & 0xff;
+		switch (st) {
+		case 0xf8:
+			tick(ts >= 0 ? ts : System.nanoTime() / 1000);
+			break;
+		case 0xfa:
+			starts++;
+			ticks = 0;
+			playing = true;
+			break;
+		case 0xfb:
+			continues++;
+			playing = true;
+			break;
+		case 0xfc:
+			stops++;
+			playing = false;
+			break;
+		case 0xf2:
+			if (n > 2) {
+				spps++;
+				// 16th notes, 6 clocks each
+				ticks = ((b[o + 1] & 0x7f) | (b[o + 2] & 0x7f) << 7) * (PPQN / 4);
+			}
+			break;
+		}
+		return true;
+	}
+
+	private void tick(long us) {
+		clocks++;
+		if (playing)
+			ticks++;
+		if (lastUs >= 0) {
+			long dt = us - lastUs;
+			double iv = interval;
+			if (dt > MAX_GAP_US) {
+				dropouts++;
+				interval = 0;
+			} else if (dt > 0) {
+				if (0 == iv) {
+					interval = dt;
+				} else if (Math.abs(dt - iv) > iv / 4) {
+					if (++outliers >= 3) {
+						interval = dt;
+						outliers = 0;
+					}
+				} else {
+					outliers = 0;
+					interval = iv + (dt - iv) / 8;
+				}
+			}
+		}
+		lastUs = us;
+	}
+
+	/* Transport state, any thread */
+
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	// Beats per minute, 0 if no clock
+	public double getTempo() {
+		double iv = interval;
+		return iv > 0 ? 60e6 / (iv * PPQN) : 0;
+	}
+
+	// Clocks since song start
+	public long getPosition() {
+		return ticks;
+	}
+
+	// "120.0bpm playing 3:2:00"
+	public String getState() {
+		StringBuffer sb = new StringBuffer();
+		double bpm = getTempo();
+		if (bpm > 0)
+			sb.append(Math.round(bpm * 10) / 10.0).append("bpm ");
+		else
+			sb.append("no clock ");
+		sb.append(playing ? "playing " : "stopped ");
+		long t = ticks;
+		int bpb = beatsPerBar;
+		sb.append(t / (PPQN * bpb) + 1).append(':').append(t / PPQN % bpb + 1).append(':');
+		int tk = (int) (t % PPQN);
+		return sb.append((char) ('0' + tk / 10)).append((char) ('0' + tk % 10)).toString();
+	}
+
+	/* Status line */
+
+	public void run() {
+		while (running) {
+			try {
+				long ms = statusMillis;
+				Thread.sleep(ms > 0 ? ms : 1000);
+			} catch (InterruptedException e) {
+			}
+			long c = clocks;
+			boolean p = playing;
+			if (running && statusMillis > 0 && (c != shownClocks || p != shownPlaying))
+				out.println("  clock: " + getState());
+			shownClocks = c;
+			shownPlaying = p;
+		}
+	}
+
+	public void start() {
+		running = true;
+		printer = new Thread(this, "MidiFun-clock");
+		printer.setDaemon(true);
+		printer.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (printer != null)
+			printer.interrupt();
+	}
+
+	/*
+	 * "<ms>" status line interval (0 or "off": none), "bar <beats>",
+	 * "reset"; returns an error message or null.
+	 */
+	public String configure(String args) {
+		String[] a = args.trim().split("\\s+");
+		try {
+			if ("off".equals(a[0])) {
+				statusMillis = 0;
+			} else if ("bar".equals(a[0]) && a.length > 1) {
+				int n = Integer.parseInt(a[1]);
+				if (n < 1)
+					return "invalid beats per bar";
+				beatsPerBar = n;
+			} else if ("reset".equals(a[0])) {
+				starts = continues = stops = spps = dropouts = 0;
+				clocks = 0;
+			} else {
+				long ms = Long.parseLong(a[0]);
+				// a sleeping printer wakes up for the new interval
+				statusMillis = ms > 0 ? Math.max(ms, 50) : 0;
+				if (printer != null)
+					printer.interrupt();
+			}
+		} catch (NumberFormatException e) {
+			return "invalid clock value: " + e.getMessage();
+		}
+		return null;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("clock: ").append(getState());
+		sb.append(" (").append(beatsPerBar).append("/4)");
+		sb.append("; clocks ").append(clocks).append(" start ").append(starts).append(" continue ").append(continues);
+		sb.append(" stop ").append(stops).append(" spp ").append(spps).append(" dropouts ").append(dropouts);
+		sb.append("; status ").append(statusMillis > 0 ? statusMillis + "ms" : "off");
+		return sb.toString();
+	}
+}
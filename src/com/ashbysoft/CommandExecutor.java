@@ -0,0 +1,144 @@
+package com.ashbysoft;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs .midifunrc and stdin commands, adding script constructs around
+ * the plain commands:
+ *   wait <ms>                  pause
+ *   wait                       until background commands are done and no
+ *                              module is waiting for device replies
+ *   repeat <n> <command>       run a command n times
+ *   parallel <cmd>; <cmd>; ..  run commands concurrently, then carry on
+ *   <command> &                run in the background
+ * Constructs nest, eg: "repeat 4 parallel @0 mix l; @1 mix l". Module
+ * requests are pipelined, so a script that fires off queries to several
+ * devices and then waits takes as long as the slowest reply.
+ */
+public class CommandExecutor {
+
+	public interface Handler {
+		public void handle(String cmd);
+	}
+
+	private Handler handler;
+	private ModuleTable modules;
+	private ExecutorService pool;
+	private List<Future<?>> background = new ArrayList<Future<?>>();
+
+	public CommandExecutor(Handler handler, ModuleTable modules) {
+		this.handler = handler;
+		this.modules = modules;
+		// daemon threads, created as needed and reused
+		final AtomicInteger n = new AtomicInteger();
+		pool = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MidiFun-cmd-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void execute(String cmd) {
+		cmd = cmd.trim();
+		if (cmd.endsWith("&")) {
+			final String c = cmd.substring(0, cmd.length() - 1);
+			synchronized (background) {
+				background.add(pool.submit(new Runnable() {
+					public void run() {
+						execute(c);
+					}
+				}));
+			}
+		} else if ("wait".equals(cmd) || cmd.startsWith("wait ")) {
+			String a = cmd.substring(4).trim();
+			try {
+				if (a.length() > 0)
+					Thread.sleep(Long.parseLong(a));
+				else
+					await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (NumberFormatException e) {
+				System.out.println("invalid wait [<ms>] command");
+			}
+		} else if (cmd.startsWith("repeat ")) {
+			String[] a = cmd.split("\\s+", 3);
+			try {
+				int n = Integer.parseInt(a[1]);
+				for (int i = 0; a.length > 2 && i < n; i++)
+					execute(a[2]);
+			} catch (NumberFormatException e) {
+				System.out.println("invalid repeat <n> <command> command");
+			}
+		} else if (cmd.startsWith("parallel ")) {
+			String[] cs = cmd.substring(9).split(";");
+			List<Future<?>> fs = new ArrayList<Future<?>>();
+			for (int i = 0; i < cs.length; i++) {
+				final String c = cs[i];
+				fs.add(pool.submit(new Runnable() {
+					public void run() {
+						execute(c);
+					}
+				}));
+			}
+			join(fs);
+		} else {
+			handler.handle(cmd);
+		}
+	}
+
+	// Wait for background commands, then for every module's outstanding replies
+	public void await() throws InterruptedException {
+		while (true) {
+			List<Future<?>> fs;
+			synchronized (background) {
+				if (background.isEmpty())
+					break;
+				fs = new ArrayList<Future<?>>(background);
+				background.clear();
+			}
+			join(fs);
+		}
+		List<CompletableFuture<Void>> idle = new ArrayList<CompletableFuture<Void>>();
+		for (ModuleTable.Entry e : modules.entries())
+			idle.add(e.mod.idle());
+		try {
+			CompletableFuture.allOf(idle.toArray(new CompletableFuture<?>[idle.size()])).get();
+		} catch (ExecutionException e) {
+			System.out.println("wait: " + e.getCause());
+		}
+	}
+
+	// Wait for every command in fs; if interrupted, cancel what is left and keep the interrupt
+	private static void join(List<Future<?>> fs) {
+		for (Future<?> f : fs) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				for (Future<?> c : fs)
+					c.cancel(true);
+				Thread.currentThread().interrupt();
+				return;
+			} catch (CancellationException e) {
+				// cancelled by an earlier interrupt
+			} catch (ExecutionException e) {
+				System.out.println("command failed: " + e.getCause());
+			}
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+}
@@ -0,0 +1,82 @@
+package com.ashbysoft;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Command word -> handlers, as a character trie. Words are added in the
+ * getCommands() syntax: "mix[er]" accepts mix, mixe and mixer, "[un]lock"
+ * accepts lock and unlock. Lookups walk one node per character and do
+ * not allocate.
+ */
+public class CommandTrie<T> {
+
+	static class Node<T> {
+		@SuppressWarnings("unchecked")
+		Node<T>[] next = (Node<T>[]) new Node<?>[128];
+		List<T> vals = null;
+	}
+
+	private Node<T> root = new Node<T>();
+
+	// Add every word the first token of a getCommands() line accepts
+	public void addSyntax(String syntax, T v) {
+		String w = syntax.trim();
+		int sp = w.indexOf(' ');
+		if (sp > 0)
+			w = w.substring(0, sp);
+		String[] alts = w.split("\\|");
+		List<String> words = new ArrayList<String>();
+		for (int i = 0; i < alts.length; i++)
+			expand(alts[i], words);
+		for (String s : words)
+			put(s, v);
+	}
+
+	private static void expand(String w, List<String> out) {
+		int b = w.indexOf('[');
+		int e = w.indexOf(']');
+		if (b < 0 || e < b) {
+			if (w.length() > 0)
+				out.add(w);
+			return;
+		}
+		String pre = w.substring(0, b);
+		String opt = w.substring(b + 1, e);
+		String post = w.substring(e + 1);
+		if (post.length() == 0) {
+			// trailing optional part: any abbreviation of it
+			for (int i = 0; i <= opt.length(); i++)
+				expand(pre + opt.substring(0, i), out);
+		} else {
+			expand(pre + post, out);
+			expand(pre + opt + post, out);
+		}
+	}
+
+	public void put(String word, T v) {
+		Node<T> n = root;
+		for (int i = 0; i < word.length(); i++) {
+			int c = word.charAt(i) & 0x7f;
+			if (n.next[c] == null)
+				n.next[c] = new Node<T>();
+			n = n.next[c];
+		}
+		if (n.vals == null)
+			n.vals = new ArrayList<T>();
+		if (!n.vals.contains(v))
+			n.vals.add(v);
+	}
+
+	// Handlers for the first word of cmd, null if none
+	public List<T> get(String cmd) {
+		Node<T> n = root;
+		for (int i = 0; i < cmd.length() && n != null; i++) {
+			char c = cmd.charAt(i);
+			if (' ' == c)
+				break;
+			n = c < 128 ? n.next[c] : null;
+		}
+		return n != null ? n.vals : null;
+	}
+}
@@ -0,0 +1,54 @@
+package com.ashbysoft;
+
+/*
+ * Mutable, re-usable result of MidiDecoder.decode(). Holds the decoded
+ * header fields and a reference to the raw bytes (no copy). Text is
+ * only produced when MidiDecoder.format() is called.
+ */
+public class DecodedMsg {
+	// Raw bytes of the message: data[off..off+len)
+	public byte[] data;
+	public int off;
+	public int len;
+	// Input port the message arrived on
+	public int port;
+	// Receive timestamp (microseconds, -1 if unknown)
+	public long ts;
+	// Status with channel masked out for voice messages, raw status otherwise
+	public int status;
+	// Channel (0-15) for voice messages, -1 otherwise
+	public int channel;
+	// First/second data bytes, -1 if not present
+	public int data1;
+	public int data2;
+	// Sysex manufacturer ID (extended IDs as (b1+1)<<8|b2), -1 if not sysex
+	public int mfId;
+	// Offset of the byte following the manufacturer ID (sysex only)
+	public int body;
+
+	// scratch space for short messages, avoids getMessage() copies
+	byte[] shortBuf = new byte[3];
+	// bounds-checked view of the sysex body, for formatting
+	final SysexCursor cursor = new SysexCursor();
+
+	public void clear() {
+		data = null;
+		off = len = port = 0;
+		ts = -1;
+		status = 0;
+		channel = data1 = data2 = mfId = -1;
+		body = 0;
+	}
+
+	public boolean isSysex() {
+		return 0xf0 == status;
+	}
+
+	public boolean isVoice() {
+		return channel >= 0;
+	}
+
+	public int get(int i) {
+		return ((int) data[off + i]) & 0xff;
+	}
+}
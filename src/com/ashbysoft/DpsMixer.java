@@ -0,0 +1,302 @@
+package com.ashbysoft;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * In-memory copy of a DPS mixer, kept up to date from 0x7b replies. All
+ * parameters live in one flat byte array, addressed by slot(type, kind,
+ * ch), with bitmaps for 'value known' and 'changed since last cleared'.
+ * Channel 0 holds the masters (level/pan kind 0 = MASTER, 1-4 = A-D
+ * masters), 1..size the mixer channels, then the 8 T channels.
+ * Writes (replies on the consumer thread, recall from a command) lock
+ * the mixer, as the bitmaps are read-modify-write; reads do not, and may
+ * be slightly stale. Listeners are called with the lock held.
+ *
+ * Snapshot file format (big endian): "DPSM", version byte, DPS size byte,
+ * slot count (short), the 'known' bitmap longs, then one byte per slot.
+ */
+public class DpsMixer {
+
+	public interface Listener {
+		public void mixChanged(DpsMixer mix, int slot, int oldVal, int newVal);
+	}
+
+	// parameter types and how many 'kinds' each has per channel
+	public static final int LEVEL = 0;		// kind 0 = main, 1-4 = aux A-D
+	public static final int PAN = 1;
+	public static final int INPUT = 2;
+	public static final int EQ_GAIN = 3;		// kind 0-2 = low/mid/high
+	public static final int EQ_FREQ = 4;
+	public static final int EQ_Q = 5;
+	public static final int OUTPUT = 6;		// global, kind = output name, ch 0
+
+	static final String[] typeNames = { "level", "pan", "input", "eq gain", "eq freq", "eq q", "output" };
+	private static final int[] kinds = { 5, 5, 1, 3, 3, 3, 8 };
+	private static final int[] base = new int[kinds.length];
+	private static final int PER_CH;
+	static {
+		int b = 0;
+		for (int t = 0; t < OUTPUT; t++) {
+			base[t] = b;
+			b += kinds[t];
+		}
+		PER_CH = b;
+	}
+
+	private final int size;
+	private final int nch;
+	private final byte[] vals;
+	private final long[] known;
+	private final long[] dirty;
+	private long updates = 0;
+	private CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private static final int MAGIC = 0x4450534d;		// DPSM
+	private static final int VERSION = 1;
+
+	public DpsMixer(int size) {
+		this.size = size;
+		this.nch = size + 9;
+		int n = nch * PER_CH + kinds[OUTPUT];
+		vals = new byte[n];
+		known = new long[(n + 63) / 64];
+		dirty = new long[known.length];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	// Highest valid channel index (T8)
+	public int getChannels() {
+		return nch - 1;
+	}
+
+	public int getSlots() {
+		return vals.length;
+	}
+
+	public int slot(int type, int kind, int ch) {
+		if (OUTPUT == type)
+			return nch * PER_CH + kind;
+		return ch * PER_CH + base[type] + kind;
+	}
+
+	public int typeOf(int slot) {
+		if (slot >= nch * PER_CH)
+			return OUTPUT;
+		int r = slot % PER_CH;
+		int t = 0;
+		while (t + 1 < OUTPUT && base[t + 1] <= r)
+			t++;
+		return t;
+	}
+
+	public int kindOf(int slot) {
+		if (slot >= nch * PER_CH)
+			return slot - nch * PER_CH;
+		return slot % PER_CH - base[typeOf(slot)];
+	}
+
+	public int channelOf(int slot) {
+		return slot >= nch * PER_CH ? 0 : slot / PER_CH;
+	}
+
+	public int get(int slot) {
+		return vals[slot];
+	}
+
+	public int get(int type, int kind, int ch) {
+		return vals[slot(type, kind, ch)];
+	}
+
+	public boolean isKnown(int slot) {
+		return (known[slot >> 6] & (1L << slot)) != 0;
+	}
+
+	public boolean isKnownChannel(int ch) {
+		for (int s = slot(0, 0, ch); s < slot(0, 0, ch) + PER_CH; s++) {
+			if (isKnown(s))
+				return true;
+		}
+		return false;
+	}
+
+	public boolean isDirty(int slot) {
+		return (dirty[slot >> 6] & (1L << slot)) != 0;
+	}
+
+	public synchronized void clearDirty() {
+		for (int i = 0; i < dirty.length; i++)
+			dirty[i] = 0;
+	}
+
+	// Next dirty slot at or after 'from', -1 if none
+	public int nextDirty(int from) {
+		for (int w = from >> 6; w < dirty.length; w++) {
+			long m = dirty[w];
+			if (w == from >> 6)
+				m &= -1L << from;
+			if (m != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(m);
+		}
+		return -1;
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	public long getUpdates() {
+		return updates;
+	}
+
+	public synchronized void set(int slot, int v) {
+		int old = vals[slot];
+		boolean was = isKnown(slot);
+		known[slot >> 6] |= 1L << slot;
+		if (was && old == v)
+			return;
+		vals[slot] = (byte) v;
+		dirty[slot >> 6] |= 1L << slot;
+		for (Listener l : listeners)
+			l.mixChanged(this, slot, old, v);
+	}
+
+	private boolean valid(int ch) {
+		return ch >= 0 && ch < nch;
+	}
+
+	/*
+	 * Apply a 0x7b reply, b[o] is the device ID, e the end of the message.
+	 * Where the records start, their length and where each value is in
+	 * them come from the "7b.<mix command>" row of AkaiPro.SCHEMA: the
+	 * channel, then the values in schema order.
+	 */
+	public synchronized void update(byte[] b, int o, int e) {
+		if (o + 6 > e)
+			return;
+		int cnt = b[o + 3];
+		int mc = b[o + 4];
+		int kind = b[o + 5];
+		int st = AkaiPro.stride(mc);
+		int[] f = AkaiPro.SCHEMA.fields(0x7b, mc);
+		int end = Math.min(e - 1, o + 4 + cnt);
+		updates++;
+		if (f == null)
+			return;
+		for (int p = o + 1 + AkaiPro.SCHEMA.recordStart(0x7b, mc); st > 0 && p + st <= end; p += st) {
+			int ch = b[p + f[0]];
+			if (0x03 == mc && f.length > 1) {
+				if (ch >= 0 && ch < kinds[OUTPUT])
+					set(slot(OUTPUT, ch, 0), b[p + f[1]]);
+			} else if (!valid(ch)) {
+				continue;
+			} else if (0x01 == mc && f.length > 2 && kind >= 0 && kind < 5) {
+				set(slot(LEVEL, kind, ch), b[p + f[1]]);
+				set(slot(PAN, kind, ch), b[p + f[2]]);
+			} else if (0x02 == mc && f.length > 1) {
+				set(slot(INPUT, 0, ch), b[p + f[1]]);
+			} else if (0x11 == mc && f.length > 3 && kind >= 0 && kind < 3) {
+				set(slot(EQ_GAIN, kind, ch), b[p + f[1]]);
+				set(slot(EQ_FREQ, kind, ch), b[p + f[2]]);
+				set(slot(EQ_Q, kind, ch), b[p + f[3]]);
+			}
+		}
+	}
+
+	/* Snapshots */
+
+	public synchronized void save(File f) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(8 + known.length * 8 + vals.length);
+		bb.putInt(MAGIC).put((byte) VERSION).put((byte) size).putShort((short) vals.length);
+		for (int i = 0; i < known.length; i++)
+			bb.putLong(known[i]);
+		bb.put(vals).flip();
+		FileChannel ch = new FileOutputStream(f).getChannel();
+		try {
+			while (bb.hasRemaining())
+				ch.write(bb);
+		} finally {
+			ch.close();
+		}
+	}
+
+	public static DpsMixer load(File f) throws IOException {
+		FileChannel ch = new FileInputStream(f).getChannel();
+		try {
+			// a DPS24 snapshot is under 1KB
+			if (ch.size() > 65536)
+				throw new IOException("Not a DPS mixer snapshot: " + f);
+			ByteBuffer bb = ByteBuffer.allocate((int) ch.size());
+			while (bb.hasRemaining() && ch.read(bb) >= 0)
+				;
+			bb.flip();
+			if (bb.remaining() < 8 || bb.getInt() != MAGIC)
+				throw new IOException("Not a DPS mixer snapshot: " + f);
+			int ver = bb.get();
+			if (ver != VERSION)
+				throw new IOException("Unsupported snapshot version " + ver + ": " + f);
+			int size = bb.get();
+			if (size != 12 && size != 16 && size != 24)
+				throw new IOException("Unsupported DPS size " + size + ": " + f);
+			DpsMixer m = new DpsMixer(size);
+			if ((bb.getShort() & 0xffff) != m.vals.length || bb.remaining() != m.known.length * 8 + m.vals.length)
+				throw new IOException("Corrupt snapshot: " + f);
+			for (int i = 0; i < m.known.length; i++)
+				m.known[i] = bb.getLong();
+			bb.get(m.vals);
+			return m;
+		} finally {
+			ch.close();
+		}
+	}
+
+	// Would applying 'to' change anything in the slots from..from+n ?
+	public boolean differs(DpsMixer to, int from, int n) {
+		for (int s = from; s < from + n; s++) {
+			if (to.isKnown(s) && (!isKnown(s) || vals[s] != to.vals[s]))
+				return true;
+		}
+		return false;
+	}
+
+	public String describe(int slot) {
+		int t = typeOf(slot);
+		StringBuffer sb = new StringBuffer();
+		if (OUTPUT == t)
+			return sb.append("output ").append(kindOf(slot)).toString();
+		sb.append("ch ").append(channelOf(slot)).append(' ').append(typeNames[t]);
+		if (kinds[t] > 1)
+			sb.append('/').append(kindOf(slot));
+		return sb.toString();
+	}
+
+	// One line per channel of everything known about it
+	public String show(int ch) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(ch == 0 ? "masters" : "ch " + ch).append(':');
+		for (int t = 0; t < OUTPUT; t++) {
+			for (int k = 0; k < kinds[t]; k++) {
+				int s = slot(t, k, ch);
+				if (isKnown(s)) {
+					sb.append(' ').append(typeNames[t]);
+					if (kinds[t] > 1)
+						sb.append('/').append(k);
+					sb.append('=').append(vals[s]);
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,226 @@
+package com.ashbysoft;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+
+/*
+ * Pretend Akai DPS12/16/24 on the far end of a VirtualMidiDevice. Answers
+ * the universal identity request, 0x7a mixer requests (levels, aux
+ * sends, input/output maps, EQ) with 0x7b replies in the layout of the
+ * AkaiPro schema, and 0x52 with a fixed tempo map (0x51, see TempoMap).
+ * Applies 0x7b messages sent to it.
+ */
+public class DpsSimulator implements Receiver {
+
+	private VirtualMidiDevice dev;
+	private int size;
+	private int devId;
+
+	// mixer state, indexed by DPS channel number (1..size)
+	private byte[][] levels;			// [kind 0=main, 1-4=aux A-D][ch]
+	private byte[][] pans;
+	private byte[] inputs;
+	private byte[] outputs;			// [output name] -> output map
+	private byte[][][] eq;			// [band][ch][gain,freq,q]
+
+	// bar, tempo * 10, meter numerator/denominator
+	private int[][] tempos = { { 1, 1200, 4, 4 }, { 9, 1400, 4, 4 }, { 17, 900, 3, 4 } };
+
+	private long requests = 0;
+
+	public DpsSimulator(VirtualMidiDevice dev, int size, int devId) {
+		this.dev = dev;
+		this.size = size;
+		this.devId = devId;
+		int n = size + 9;
+		levels = new byte[5][n];
+		pans = new byte[5][n];
+		inputs = new byte[n];
+		outputs = new byte[8];
+		eq = new byte[3][n][3];
+		for (int ch = 1; ch < n; ch++) {
+			for (int k = 0; k < 5; k++) {
+				levels[k][ch] = (byte) (k == 0 ? 100 : 0);
+				pans[k][ch] = 64;
+			}
+			inputs[ch] = (byte) ((ch - 1) % 6);
+			for (int b = 0; b < 3; b++) {
+				eq[b][ch][0] = 64;
+				eq[b][ch][1] = (byte) (20 + b * 40);
+				eq[b][ch][2] = 32;
+			}
+		}
+		for (int o = 0; o < outputs.length; o++)
+			outputs[o] = (byte) o;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public long getRequests() {
+		return requests;
+	}
+
+	/* Receiver interface: messages the host sent to the 'hardware' */
+
+	public void close() {
+	}
+
+	public void send(MidiMessage msg, long ts) {
+		byte[] b = msg.getMessage();
+		int n = msg.getLength();
+		if (n < 6 || (b[0] & 0xff) != 0xf0)
+			return;
+		if (0x7e == b[1] && 0x06 == b[3] && 0x01 == b[4]) {
+			requests++;
+			reply(identity());
+		} else if (0x47 == b[1] && devId == b[2] && 0x52 == b[3]) {
+			requests++;
+			reply(tempoMap());
+		} else if (0x47 == b[1] && devId == b[2] && n >= 9 && 0x5a == b[4]) {
+			int fn = b[3];
+			int cnt = b[5];
+			int mc = b[6];
+			if (0x7a == fn) {
+				requests++;
+				int nch = Math.max(0, Math.min(cnt - 2, n - 9));
+				byte[] chans = new byte[nch];
+				System.arraycopy(b, 8, chans, 0, nch);
+				reply(mixReply(mc, b[7], chans));
+			} else if (0x7b == fn) {
+				apply(mc, b[7], b, 8, Math.min(n - 1, 6 + cnt));
+			}
+		}
+	}
+
+	private void reply(byte[] b) {
+		if (b == null)
+			return;
+		SysexMessage sx = new SysexMessage();
+		try {
+			sx.setMessage(b, b.length);
+			dev.inject(sx, dev.getMicrosecondPosition());
+		} catch (InvalidMidiDataException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private byte[] identity() {
+		int p = size == 24 ? 0x18 : size == 16 ? 0x10 : 0x0c;
+		return new byte[] { (byte) 0xf0, 0x7e, (byte) devId, 0x06, 0x02, 0x47, 0x00, 0x19, (byte) p, 0x00,
+			0x01, 0x00, 0x00, 0x00, (byte) 0xf7 };
+	}
+
+	private byte[] tempoMap() {
+		byte[] b = new byte[6 + tempos.length * 6];
+		int o = 0;
+		b[o++] = (byte) 0xf0;
+		b[o++] = 0x47;
+		b[o++] = (byte) devId;
+		b[o++] = 0x51;
+		b[o++] = 0x5a;
+		for (int i = 0; i < tempos.length; i++) {
+			int[] t = tempos[i];
+			b[o++] = (byte) (t[0] & 0x7f);
+			b[o++] = (byte) (t[0] >> 7);
+			b[o++] = (byte) (t[1] & 0x7f);
+			b[o++] = (byte) (t[1] >> 7);
+			b[o++] = (byte) t[2];
+			b[o++] = (byte) t[3];
+		}
+		b[o] = (byte) 0xf7;
+		return b;
+	}
+
+	private boolean valid(int ch) {
+		return ch > 0 && ch < inputs.length;
+	}
+
+	// Build a 0x7b reply for mixer command mc
+	public byte[] mixReply(int mc, int kind, byte[] chans) {
+		int st = AkaiPro.stride(mc);
+		if (0 == st)
+			return null;
+		if (0x03 == mc) {
+			// output map is always the whole list
+			chans = new byte[outputs.length];
+			for (int o = 0; o < chans.length; o++)
+				chans[o] = (byte) o;
+		}
+		int cnt = 2 + chans.length * st;
+		byte[] b = new byte[8 + chans.length * st + 1];
+		int o = 0;
+		b[o++] = (byte) 0xf0;
+		b[o++] = 0x47;
+		b[o++] = (byte) devId;
+		b[o++] = 0x7b;
+		b[o++] = 0x5a;
+		b[o++] = (byte) cnt;
+		b[o++] = (byte) mc;
+		b[o++] = (byte) kind;
+		for (int i = 0; i < chans.length; i++) {
+			int ch = chans[i];
+			b[o++] = (byte) ch;
+			if (0x03 == mc) {
+				b[o++] = outputs[ch % outputs.length];
+				continue;
+			}
+			if (!valid(ch)) {
+				o += st - 1;
+				continue;
+			}
+			if (0x01 == mc) {
+				int k = kind % 5;
+				b[o++] = levels[k][ch];
+				o++;
+				b[o++] = pans[k][ch];
+				o++;
+			} else if (0x02 == mc) {
+				b[o++] = inputs[ch];
+			} else if (0x11 == mc) {
+				byte[] e = eq[kind % 3][ch];
+				b[o++] = e[0];
+				o++;
+				b[o++] = e[1];
+				o++;
+				b[o++] = e[2];
+				o++;
+			}
+		}
+		b[o] = (byte) 0xf7;
+		return b;
+	}
+
+	public byte[] mixReply(int mc, int kind, int beg, int nch) {
+		byte[] chans = new byte[nch];
+		for (int i = 0; i < nch; i++)
+			chans[i] = (byte) (beg + i);
+		return mixReply(mc, kind, chans);
+	}
+
+	// Apply a 0x7b block sent to us, b[o..e) is channel data
+	private void apply(int mc, int kind, byte[] b, int o, int e) {
+		int st = AkaiPro.stride(mc);
+		for (; st > 0 && o + st <= e; o += st) {
+			int ch = b[o];
+			if (0x03 == mc) {
+				outputs[ch % outputs.length] = b[o + 1];
+			} else if (!valid(ch)) {
+				continue;
+			} else if (0x01 == mc) {
+				levels[kind % 5][ch] = b[o + 1];
+				pans[kind % 5][ch] = b[o + 3];
+			} else if (0x02 == mc) {
+				inputs[ch] = b[o + 1];
+			} else if (0x11 == mc) {
+				byte[] q = eq[kind % 3][ch];
+				q[0] = b[o + 1];
+				q[1] = b[o + 3];
+				q[2] = b[o + 5];
+			}
+		}
+	}
+}
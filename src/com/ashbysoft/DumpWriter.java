@@ -0,0 +1,149 @@
+package com.ashbysoft;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Batched output sink for RX/TX hex dumps and decoded text. Hex is
+ * formatted from a lookup table straight into a re-usable byte buffer,
+ * which is written out when it fills or every flushMillis (by a
+ * background thread), rather than per line as System.out.println does.
+ */
+public class DumpWriter implements Runnable {
+
+	private static final byte[] HEX = new byte[512];
+	static {
+		byte[] dig = "0123456789abcdef".getBytes();
+		for (int v = 0; v < 256; v++) {
+			HEX[v * 2] = dig[v >> 4];
+			HEX[v * 2 + 1] = dig[v & 0xf];
+		}
+	}
+
+	private OutputStream os;
+	private byte[] buf;
+	private int pos = 0;
+	private long flushMillis;
+	private volatile boolean running = false;
+	private Thread flusher = null;
+
+	// dump lines start with the time in us since this was set, if >= 0
+	private long stampBase = -1;
+
+	public DumpWriter() {
+		this(new FileOutputStream(FileDescriptor.out), 16384, 50);
+	}
+
+	public DumpWriter(OutputStream os, int size, long flushMillis) {
+		this.os = os;
+		this.buf = new byte[size];
+		this.flushMillis = flushMillis;
+	}
+
+	// pfx + "xx xx xx " + newline, same layout as the old dumpMsg()
+	public synchronized void dump(String pfx, byte[] b, int o, int n) {
+		if (stampBase >= 0)
+			stamp((System.nanoTime() - stampBase) / 1000);
+		append(pfx);
+		for (int i = 0; i < n; i++) {
+			if (pos + 3 > buf.length)
+				flushBuffer();
+			int v = (((int) b[o + i]) & 0xff) << 1;
+			buf[pos++] = HEX[v];
+			buf[pos++] = HEX[v + 1];
+			buf[pos++] = ' ';
+		}
+		newline();
+	}
+
+	// "<us> " without a String
+	private void stamp(long us) {
+		if (pos + 21 > buf.length)
+			flushBuffer();
+		int start = pos;
+		do {
+			buf[pos++] = (byte) ('0' + us % 10);
+			us /= 10;
+		} while (us > 0);
+		for (int i = start, j = pos - 1; i < j; i++, j--) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+		buf[pos++] = ' ';
+	}
+
+	// Time stamp dump lines (for LogAnalyzer), from now
+	public synchronized void setStamps(boolean on) {
+		stampBase = on ? System.nanoTime() : -1;
+	}
+
+	public synchronized void println(CharSequence s) {
+		append(s);
+		newline();
+	}
+
+	public synchronized void flush() {
+		flushBuffer();
+		try {
+			os.flush();
+		} catch (IOException e) {
+		}
+	}
+
+	private void append(CharSequence s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (pos == buf.length)
+				flushBuffer();
+			char c = s.charAt(i);
+			buf[pos++] = (c < 0x80) ? (byte) c : (byte) '?';
+		}
+	}
+
+	private void newline() {
+		if (pos == buf.length)
+			flushBuffer();
+		buf[pos++] = '\n';
+		// keep a margin so the next line rarely splits across writes
+		if (pos > buf.length - 256)
+			flushBuffer();
+	}
+
+	private void flushBuffer() {
+		if (pos > 0) {
+			try {
+				os.write(buf, 0, pos);
+			} catch (IOException e) {
+			}
+			pos = 0;
+		}
+	}
+
+	/* Periodic flushing */
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(flushMillis);
+			} catch (InterruptedException e) {
+			}
+			flush();
+		}
+	}
+
+	public void start() {
+		running = true;
+		flusher = new Thread(this, "MidiFun-out");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (flusher != null)
+			flusher.interrupt();
+		flush();
+	}
+}
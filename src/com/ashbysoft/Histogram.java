@@ -0,0 +1,110 @@
+package com.ashbysoft;
+
+/*
+ * Log-linear histogram of non-negative longs (HdrHistogram style): values
+ * below 32 are exact, above that each power of two is split into 16
+ * buckets, so any recorded value is within ~6% of its bucket. Fixed
+ * size, recording is a few shifts and an array increment. Single writer,
+ * readers may see slightly stale counts.
+ */
+public class Histogram {
+
+	private static final int SUB = 32;
+	private static final int HALF = SUB / 2;
+
+	private final long[] counts = new long[SUB + 64 * HALF];
+	private long total = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	private static int index(long v) {
+		if (v < SUB)
+			return (int) v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - 4;
+		return SUB + (shift - 1) * HALF + (int) (v >> shift) - HALF;
+	}
+
+	// Highest value that maps to bucket i
+	private static long upper(int i) {
+		if (i < SUB)
+			return i;
+		int shift = (i - SUB) / HALF + 1;
+		long top = (i - SUB) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+
+	public void record(long v) {
+		if (v < 0)
+			v = 0;
+		counts[index(v)]++;
+		total++;
+		sum += v;
+		if (v < min)
+			min = v;
+		if (v > max)
+			max = v;
+	}
+
+	public long getCount() {
+		return total;
+	}
+
+	public long getMin() {
+		return total > 0 ? min : 0;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public long getMean() {
+		return total > 0 ? sum / total : 0;
+	}
+
+	// Value at percentile p (0-100), to bucket precision
+	public long percentile(double p) {
+		long want = (long) Math.ceil(total * p / 100.0);
+		if (want < 1)
+			want = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= want)
+				return Math.min(upper(i), max);
+		}
+		return max;
+	}
+
+	// Fold another histogram's counts into this one
+	public void add(Histogram h) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += h.counts[i];
+		total += h.total;
+		sum += h.sum;
+		if (h.total > 0 && h.min < min)
+			min = h.min;
+		if (h.max > max)
+			max = h.max;
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+		total = sum = max = 0;
+		min = Long.MAX_VALUE;
+	}
+
+	// "n=.. min=.. p50=.. p90=.. p99=.. p99.9=.. max=.. mean=.." with values divided by scale
+	public String summary(long scale) {
+		return "n=" + total + " min=" + getMin() / scale + " p50=" + percentile(50) / scale + " p90=" + percentile(90) / scale +
+			" p99=" + percentile(99) / scale + " p99.9=" + percentile(99.9) / scale + " max=" + max / scale +
+			" mean=" + getMean() / scale;
+	}
+
+	public String toJson(long scale) {
+		return "{\"n\":" + total + ",\"min\":" + getMin() / scale + ",\"p50\":" + percentile(50) / scale + ",\"p90\":" +
+			percentile(90) / scale + ",\"p99\":" + percentile(99) / scale + ",\"p999\":" + percentile(99.9) / scale +
+			",\"max\":" + max / scale + ",\"mean\":" + getMean() / scale + "}";
+	}
+}
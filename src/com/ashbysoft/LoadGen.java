@@ -0,0 +1,164 @@
+package com.ashbysoft;
+
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/*
+ * Synthetic receive traffic for a VirtualMidiDevice: MIDI clock, note
+ * on/off pairs, controller bursts and DPS mixer replies (levels, input map,
+ * EQ) at configurable rates (messages/second), well beyond what a real
+ * 31.25kbaud link can carry. Each message is stamped with the device
+ * clock so end-to-end latency can be measured downstream.
+ */
+public class LoadGen implements Runnable {
+
+	private static final int CC_BURST = 8;
+
+	private VirtualMidiDevice dev;
+
+	// rates in messages per second
+	private int clock = 0, notes = 0, cc = 0, sysex = 0;
+	private long seconds = 0;
+
+	private volatile boolean running = false;
+	private Thread gen = null;
+	private long sent = 0;
+	private long elapsedNs = 0;
+
+	// pre-built messages
+	private ShortMessage tick;
+	private ShortMessage[] noteOn = new ShortMessage[16], noteOff = new ShortMessage[16];
+	private ShortMessage[] ctrl = new ShortMessage[128];
+	private SysexMessage[] replies;
+
+	public LoadGen(VirtualMidiDevice dev, DpsSimulator dps) {
+		this.dev = dev;
+		try {
+			tick = new ShortMessage(ShortMessage.TIMING_CLOCK);
+			for (int i = 0; i < noteOn.length; i++) {
+				noteOn[i] = new ShortMessage(ShortMessage.NOTE_ON, i & 0xf, 48 + i, 100);
+				noteOff[i] = new ShortMessage(ShortMessage.NOTE_ON, i & 0xf, 48 + i, 0);
+			}
+			for (int i = 0; i < ctrl.length; i++)
+				ctrl[i] = new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, i);
+			if (dps != null) {
+				int n = dps.getSize();
+				byte[][] r = {
+					dps.mixReply(0x01, 0, 1, n),
+					dps.mixReply(0x02, 0, 1, n),
+					dps.mixReply(0x11, 0, 1, n),
+					dps.mixReply(0x11, 1, 1, n),
+					dps.mixReply(0x11, 2, 1, n)
+				};
+				replies = new SysexMessage[r.length];
+				for (int i = 0; i < r.length; i++) {
+					replies[i] = new SysexMessage();
+					replies[i].setMessage(r[i], r[i].length);
+				}
+			}
+		} catch (InvalidMidiDataException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// "clock=<n> notes=<n> cc=<n> sysex=<n> secs=<n>", unknown keys are ignored; returns an error message or null
+	public String configure(String args) {
+		String[] kv = args.trim().split("\\s+");
+		for (int i = 0; i < kv.length; i++) {
+			int o = kv[i].indexOf('=');
+			if (o < 0)
+				continue;
+			String k = kv[i].substring(0, o);
+			int v;
+			try {
+				v = Integer.parseInt(kv[i].substring(o + 1));
+			} catch (NumberFormatException e) {
+				return "invalid gen value: " + kv[i];
+			}
+			if (k.startsWith("cl"))
+				clock = v;
+			else if (k.startsWith("n"))
+				notes = v;
+			else if (k.startsWith("cc"))
+				cc = v;
+			else if (k.startsWith("sy"))
+				sysex = replies != null ? v : 0;
+			else if (k.startsWith("se"))
+				seconds = v;
+		}
+		return null;
+	}
+
+	public void run() {
+		long start = System.nanoTime();
+		long nClock = 0, nNote = 0, nCc = 0, nSysex = 0;
+		long ccSince = -1;
+		while (running) {
+			long el = System.nanoTime() - start;
+			if (seconds > 0 && el >= seconds * 1000000000L)
+				break;
+			// how many of each should have gone by now
+			long us = el / 1000;
+			long dClock = clock * us / 1000000L;
+			long dNote = notes * us / 1000000L;
+			long dCc = cc * us / 1000000L;
+			long dSysex = sysex * us / 1000000L;
+			for (; nClock < dClock; nClock++)
+				emit(tick);
+			for (; nNote < dNote; nNote++)
+				emit(((nNote & 1) == 0 ? noteOn : noteOff)[(int) (nNote >> 1) & 0xf]);
+			// controllers go out in bursts, but never wait more than 10ms
+			if (dCc > nCc) {
+				if (ccSince < 0)
+					ccSince = el;
+				if (dCc - nCc >= CC_BURST || el - ccSince >= 10000000L) {
+					for (; nCc < dCc; nCc++)
+						emit(ctrl[(int) nCc & 0x7f]);
+					ccSince = -1;
+				}
+			}
+			for (; nSysex < dSysex; nSysex++)
+				emit(replies[(int) nSysex % replies.length]);
+			LockSupport.parkNanos(100000);
+		}
+		elapsedNs = System.nanoTime() - start;
+		running = false;
+	}
+
+	private void emit(MidiMessage msg) {
+		dev.inject(msg, dev.getMicrosecondPosition());
+		sent++;
+	}
+
+	public void start() {
+		running = true;
+		sent = 0;
+		gen = new Thread(this, "MidiFun-gen");
+		gen.setDaemon(true);
+		gen.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (gen != null) {
+			try {
+				gen.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public String toString() {
+		long ns = elapsedNs > 0 ? elapsedNs : 1;
+		return "clock=" + clock + " notes=" + notes + " cc=" + cc + " sysex=" + sysex + " secs=" + seconds +
+			(elapsedNs > 0 ? ": sent " + sent + " in " + ns / 1000000 + "ms (" + sent * 1000000000L / ns + "/s)" : "");
+	}
+}
@@ -0,0 +1,481 @@
+package com.ashbysoft;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Offline analysis of a session, no MIDI devices needed:
+ *   java -cp bin com.ashbysoft.LogAnalyzer <log|file.mid> ..
+ * A log is MidiFun's verbose output: the "RX: f0 47 .." / "TX1: .." hex
+ * lines, anything else is skipped. Run MidiFun with -Dmidifun.stamp=true
+ * to get request/reply latencies and change times. Logs are split at
+ * line boundaries into chunks (-Dmidifun.chunk, bytes) that are read with
+ * positional reads and analysed in parallel (fork-join); chunk results
+ * are merged in file order, so memory use does not depend on file size.
+ * SMF captures (RX only) are scanned in one go, as their events are
+ * delta timed. The DPS mixer layout is -Dmidifun.dps (12, 16 or 24) or
+ * taken from the first identity reply, which is looked for in the first
+ * chunk before the rest is split up; 24 (every channel) if neither.
+ *
+ * Reported: message counts by type and channel in each direction, sysex
+ * counts by manufacturer and function (and AkaiPro mix command), 0x7a
+ * request to 0x7b reply latencies (matched like AkaiRequests, oldest
+ * first by device, mix command and kind), and changes per DPS mixer
+ * parameter with first and last values.
+ */
+public class LogAnalyzer {
+
+	static final int RX = 0, TX = 1;
+	private static final long CHUNK = Long.getLong("midifun.chunk", 16 << 20);
+	private static final int DPS = Integer.getInteger("midifun.dps", 0);
+
+	// (key, time) pairs in arrival order
+	static class Pairs {
+		long[] a = new long[32];
+		int n = 0;
+
+		void add(long key, long t) {
+			if (n + 2 > a.length)
+				a = Arrays.copyOf(a, a.length * 2);
+			a[n++] = key;
+			a[n++] = t;
+		}
+
+		// Remove the oldest pair with this key, returns its time or Long.MIN_VALUE
+		long take(long key) {
+			for (int i = 0; i < n; i += 2) {
+				if (a[i] == key) {
+					long t = a[i + 1];
+					System.arraycopy(a, i + 2, a, i, n - i - 2);
+					n -= 2;
+					return t;
+				}
+			}
+			return Long.MIN_VALUE;
+		}
+	}
+
+	// Aggregates over a run of messages, merged left to right
+	static class Stats implements DpsMixer.Listener {
+		long lines = 0, msgs = 0, bad = 0, bytes = 0;
+		long[][] types = new long[2][MaskFilter.names.length];
+		long[][] channels = new long[2][16];
+		// manufacturer ID -> counts by function byte, then AkaiPro 0x7a and 0x7b by mix command
+		Map<Integer, long[]> sysex = new TreeMap<Integer, long[]>();
+
+		// 0x7a requests not yet answered, 0x7b replies without an earlier request in this run
+		Pairs pending = new Pairs();
+		Pairs orphans = new Pairs();
+		long matched = 0;
+		Histogram latency = new Histogram();
+
+		// per mixer parameter: first/last value (-1 unseen), changes, times
+		DpsMixer mixer;
+		int[] first, last;
+		long[] changes, firstUs, lastUs;
+		private long now = -1;
+		// size taken from an identity reply if not fixed
+		private boolean fixed;
+
+		private MidiDecoder dec = new MidiDecoder(null);
+		private DecodedMsg ev = new DecodedMsg();
+
+		// A DPS size, or 0 for 24 until an identity reply says otherwise
+		Stats(int dps) {
+			fixed = dps > 0;
+			size(fixed ? dps : 24);
+		}
+
+		// New mixer layout, what was recorded with the old one is dropped
+		private void size(int dps) {
+			mixer = new DpsMixer(dps);
+			mixer.addListener(this);
+			first = new int[mixer.getSlots()];
+			last = new int[first.length];
+			changes = new long[first.length];
+			firstUs = new long[first.length];
+			lastUs = new long[first.length];
+			Arrays.fill(first, -1);
+			Arrays.fill(last, -1);
+		}
+
+		int getSize() {
+			return mixer.getSize();
+		}
+
+		void message(int dir, byte[] b, int n, long us) {
+			int st = b[0] & 0xff;
+			if (st < 0x80) {
+				bad++;
+				return;
+			}
+			msgs++;
+			bytes += n;
+			types[dir][MaskFilter.type(st)]++;
+			if (st < 0xf0)
+				channels[dir][st & 0xf]++;
+			if (0xf0 != st)
+				return;
+			dec.decode(b, 0, n, us, ev);
+			if (ev.mfId < 0)
+				return;
+			// identity reply: <dev> 06 02 47 <family> <product> ..
+			int id = ev.body;
+			if (0x7e == ev.mfId && !fixed && id + 7 < n && 0x06 == b[id + 1] && 0x02 == b[id + 2] && 0x47 == b[id + 3]) {
+				int size = AkaiPro.dpsSize((b[id + 6] & 0x7f) << 8 | (b[id + 7] & 0x7f));
+				if (size > 0) {
+					fixed = true;
+					if (size != mixer.getSize())
+						size(size);
+				}
+			}
+			long[] c = sysex.get(ev.mfId);
+			if (c == null)
+				sysex.put(ev.mfId, c = new long[384]);
+			int o = ev.body;
+			int fn = o + 1 < n ? b[o + 1] & 0x7f : 0;
+			c[fn]++;
+			// AkaiPro mixer: <dev> 7a|7b 5A <count> <mix command> <kind> ..
+			if (0x47 != ev.mfId || o + 5 >= n || (0x7a != fn && 0x7b != fn))
+				return;
+			int mc = b[o + 4] & 0x7f;
+			c[(0x7a == fn ? 128 : 256) + mc]++;
+			long key = (b[o] & 0x7f) << 16 | mc << 8 | (b[o + 5] & 0x7f);
+			if (0x7a == fn && TX == dir) {
+				pending.add(key, us);
+			} else if (0x7b == fn && RX == dir) {
+				long t = pending.take(key);
+				if (t != Long.MIN_VALUE)
+					answered(t, us);
+				else
+					orphans.add(key, us);
+			}
+			if (0x7b == fn) {
+				now = us;
+				mixer.update(b, o, n);
+			}
+		}
+
+		private void answered(long sent, long us) {
+			matched++;
+			if (sent >= 0 && us >= sent)
+				latency.record(us - sent);
+		}
+
+		public void mixChanged(DpsMixer mix, int slot, int oldVal, int newVal) {
+			if (first[slot] < 0) {
+				first[slot] = newVal;
+				firstUs[slot] = now;
+			} else if (last[slot] != newVal) {
+				changes[slot]++;
+				lastUs[slot] = now;
+			}
+			last[slot] = newVal;
+		}
+
+		// Append the stats of the run following this one
+		void merge(Stats r) {
+			lines += r.lines;
+			msgs += r.msgs;
+			bad += r.bad;
+			bytes += r.bytes;
+			for (int d = 0; d < 2; d++) {
+				for (int i = 0; i < types[d].length; i++)
+					types[d][i] += r.types[d][i];
+				for (int i = 0; i < 16; i++)
+					channels[d][i] += r.channels[d][i];
+			}
+			for (Map.Entry<Integer, long[]> e : r.sysex.entrySet()) {
+				long[] c = sysex.get(e.getKey());
+				if (c == null) {
+					sysex.put(e.getKey(), e.getValue());
+				} else {
+					for (int i = 0; i < c.length; i++)
+						c[i] += e.getValue()[i];
+				}
+			}
+			// replies at the start of r may answer requests still pending here
+			matched += r.matched;
+			latency.add(r.latency);
+			for (int i = 0; i < r.orphans.n; i += 2) {
+				long t = pending.take(r.orphans.a[i]);
+				if (t != Long.MIN_VALUE)
+					answered(t, r.orphans.a[i + 1]);
+				else
+					orphans.add(r.orphans.a[i], r.orphans.a[i + 1]);
+			}
+			for (int i = 0; i < r.pending.n; i += 2)
+				pending.add(r.pending.a[i], r.pending.a[i + 1]);
+			for (int s = 0; s < first.length; s++) {
+				if (r.first[s] < 0)
+					continue;
+				if (first[s] < 0) {
+					first[s] = r.first[s];
+					firstUs[s] = r.firstUs[s];
+				} else if (last[s] != r.first[s]) {
+					changes[s]++;
+					lastUs[s] = r.firstUs[s];
+				}
+				changes[s] += r.changes[s];
+				if (r.changes[s] > 0)
+					lastUs[s] = r.lastUs[s];
+				last[s] = r.last[s];
+			}
+		}
+
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append("  lines ").append(lines).append(", messages ").append(msgs).append(" (").append(bytes);
+			sb.append(" bytes), bad ").append(bad);
+			for (int d = 0; d < 2; d++) {
+				sb.append(d == RX ? "\n  RX:" : "\n  TX:");
+				for (int i = 0; i < types[d].length; i++) {
+					if (types[d][i] > 0)
+						sb.append(' ').append(MaskFilter.names[i]).append(' ').append(types[d][i]);
+				}
+				String sep = ", channel ";
+				for (int i = 0; i < 16; i++) {
+					if (channels[d][i] > 0) {
+						sb.append(sep).append(i + 1).append(':').append(channels[d][i]);
+						sep = " ";
+					}
+				}
+			}
+			for (Map.Entry<Integer, long[]> e : sysex.entrySet()) {
+				String mf = Manufacturers.name(e.getKey());
+				sb.append("\n  sysex ").append(mf != null ? mf : "id " + Integer.toHexString(e.getKey())).append(':');
+				long[] c = e.getValue();
+				for (int i = 0; i < 128; i++) {
+					if (c[i] == 0)
+						continue;
+					sb.append(' ').append(AkaiPro.hex(i)).append(" x").append(c[i]);
+					int base = 0x7a == i ? 128 : 0x7b == i ? 256 : 0;
+					for (int m = 0; base > 0 && m < 128; m++) {
+						if (c[base + m] > 0)
+							sb.append(m == 0 || c[base + m - 1] == 0 ? " (" : ", ").append(AkaiPro.hex(m)).append(" x").append(c[base + m]);
+						if (c[base + m] > 0 && (m == 127 || c[base + m + 1] == 0))
+							sb.append(')');
+					}
+				}
+			}
+			sb.append("\n  requests: ").append(matched).append(" answered, ").append(pending.n / 2).append(" unanswered, ");
+			sb.append(orphans.n / 2).append(" unrequested replies");
+			if (latency.getCount() > 0)
+				sb.append("\n  latency us: ").append(latency.summary(1));
+			int seen = 0;
+			long total = 0;
+			for (int s = 0; s < first.length; s++) {
+				if (first[s] >= 0)
+					seen++;
+				total += changes[s];
+			}
+			sb.append("\n  mixer: ").append(seen).append(" parameters seen, ").append(total).append(" changes");
+			// the busiest few
+			boolean[] shown = new boolean[first.length];
+			for (int k = 0; k < 10; k++) {
+				int best = -1;
+				for (int s = 0; s < first.length; s++) {
+					if (!shown[s] && changes[s] > 0 && (best < 0 || changes[s] > changes[best]))
+						best = s;
+				}
+				if (best < 0)
+					break;
+				shown[best] = true;
+				sb.append("\n    ").append(mixer.describe(best)).append(": ").append(changes[best]).append(" changes, ");
+				sb.append(first[best]).append(" -> ").append(last[best]);
+				if (lastUs[best] >= 0)
+					sb.append(" (last at ").append(lastUs[best] / 1000 / 1000.0).append("s)");
+			}
+			return sb.toString();
+		}
+	}
+
+	// Lines starting in [from, to) of a log
+	static class Chunk extends RecursiveTask<Stats> {
+		private static final long serialVersionUID = 1L;
+		private static final int START = 0, STAMP = 1, DIR = 2, PORT = 3, SPACE = 4, HEX = 5, SKIP = 6;
+
+		final FileChannel ch;
+		final long from, to;
+		final int dps;
+
+		Chunk(FileChannel ch, long from, long to, int dps) {
+			this.ch = ch;
+			this.from = from;
+			this.to = to;
+			this.dps = dps;
+		}
+
+		protected Stats compute() {
+			if (to - from > CHUNK) {
+				long mid = (from + to) >>> 1;
+				Chunk r = new Chunk(ch, mid, to, dps);
+				r.fork();
+				Stats s = new Chunk(ch, from, mid, dps).compute();
+				s.merge(r.join());
+				return s;
+			}
+			Stats s = new Stats(dps);
+			try {
+				scan(s);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return s;
+		}
+
+		private void scan(Stats s) throws IOException {
+			ByteBuffer bb = ByteBuffer.allocate(1 << 20);
+			byte[] a = bb.array();
+			byte[] msg = new byte[4096];
+			// a line running into this chunk belongs to the previous one
+			long pos = from > 0 ? from - 1 : 0;
+			int state = from > 0 ? SKIP : START;
+			boolean mine = from == 0;
+			int dir = RX, n = 0, nib = 0, v = 0;
+			long us = -1;
+			while (true) {
+				bb.clear();
+				int got = ch.read(bb, pos);
+				if (got <= 0) {
+					if (HEX == state && n > 0)
+						s.message(dir, msg, n, us);
+					if (mine && pos > from)
+						s.lines++;
+					return;
+				}
+				for (int i = 0; i < got; i++, pos++) {
+					int c = a[i];
+					if ('\n' == c) {
+						if (HEX == state && n > 0)
+							s.message(dir, msg, n, us);
+						else if (HEX == state || SPACE == state)
+							s.bad++;
+						if (mine)
+							s.lines++;
+						mine = true;
+						if (pos + 1 >= to)
+							return;
+						state = START;
+						us = -1;
+						continue;
+					}
+					switch (state) {
+					case START:
+						if (c >= '0' && c <= '9') {
+							us = c - '0';
+							state = STAMP;
+						} else if ('R' == c || 'T' == c) {
+							dir = 'R' == c ? RX : TX;
+							state = DIR;
+						} else {
+							state = SKIP;
+						}
+						break;
+					case STAMP:
+						if (c >= '0' && c <= '9')
+							us = us * 10 + c - '0';
+						else
+							state = ' ' == c ? START : SKIP;
+						break;
+					case DIR:
+						state = 'X' == c ? PORT : SKIP;
+						break;
+					case PORT:
+						if (':' == c)
+							state = SPACE;
+						else if (c < '0' || c > '9')
+							state = SKIP;
+						break;
+					case SPACE:
+						state = ' ' == c ? HEX : SKIP;
+						n = nib = v = 0;
+						break;
+					case HEX:
+						int d = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+						if (d >= 0) {
+							v = v << 4 | d;
+							if (++nib == 2) {
+								if (n == msg.length)
+									msg = Arrays.copyOf(msg, n * 2);
+								msg[n++] = (byte) v;
+								nib = v = 0;
+							}
+						} else if (c != ' ' && c != '\r') {
+							s.bad++;
+							state = SKIP;
+						}
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	static boolean isSmf(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] h = new byte[4];
+			return in.read(h) == 4 && 'M' == h[0] && 'T' == h[1] && 'h' == h[2] && 'd' == h[3];
+		} finally {
+			in.close();
+		}
+	}
+
+	public static Stats analyse(File f, ForkJoinPool pool) throws IOException {
+		if (isSmf(f)) {
+			final Stats s = new Stats(DPS);
+			new SmfPlayer(f, null).scan(new RxMerge.Sink() {
+				public void receive(int port, byte[] b, int n, long ts, long arrivalNs) {
+					s.lines++;
+					s.message(RX, b, n, ts);
+				}
+			});
+			return s;
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			// the first chunk finds the mixer size for the rest
+			long head = Math.min(CHUNK, ch.size());
+			Stats s = pool.invoke(new Chunk(ch, 0, head, DPS));
+			if (head < ch.size())
+				s.merge(pool.invoke(new Chunk(ch, head, ch.size(), s.getSize())));
+			return s;
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: LogAnalyzer <session log|file.mid> ..");
+			System.exit(1);
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		for (int i = 0; i < args.length; i++) {
+			File f = new File(args[i]);
+			long t0 = System.nanoTime();
+			try {
+				Stats s = analyse(f, pool);
+				long ms = Math.max(1, (System.nanoTime() - t0) / 1000000);
+				System.out.println(f + ": " + f.length() / 1000 + "KB in " + ms + "ms (" + f.length() / 1000 / ms +
+					"MB/s, " + pool.getParallelism() + " threads)");
+				System.out.println(s);
+			} catch (IOException | UncheckedIOException e) {
+				System.err.println(f + ": " + e);
+			}
+		}
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,149 @@
+package com.ashbysoft;
+
+/*
+ * Sysex manufacturer ID registry. One byte IDs index straight into an
+ * array, extended (0x00 prefixed) IDs live in a small open-addressed
+ * table keyed by the same value MidiDecoder computes: (b1+1)<<8 | b2.
+ * Built once when the class is loaded, lookups never box. index() maps
+ * every known ID to a dense 0..INDEXES-1 range for per-ID arrays (such
+ * as the SysexModule table).
+ */
+public final class Manufacturers {
+
+	private static final String[] names = new String[128];
+
+	// extended IDs, linear probing, 0 == empty slot
+	private static final int EXT_SIZE = 64;
+	private static final int[] extKeys = new int[EXT_SIZE];
+	private static final String[] extNames = new String[EXT_SIZE];
+
+	// size of the index() range
+	public static final int INDEXES = 128 + EXT_SIZE;
+
+	static {
+		add(0x01, "Sequential Circuits");
+		add(0x02, "Big Briar");
+		add(0x03, "Octave / Plateau");
+		add(0x04, "Moog");
+		add(0x05, "Passport Designs");
+		add(0x06, "Lexicon");
+		add(0x07, "Kurzweil");
+		add(0x08, "Fender");
+		add(0x09, "Gulbransen");
+		add(0x0a, "Delta Labs");
+		add(0x0b, "Sound Comp.");
+		add(0x0c, "General Electro");
+		add(0x0d, "Techmar");
+		add(0x0e, "Matthews Research");
+		add(0x0f, "Ensoniq");
+		add(0x10, "Oberheim");
+		add(0x11, "PAIA");
+		add(0x12, "Simmons");
+		add(0x13, "DigiDesign");
+		add(0x14, "Fairlight");
+		add(0x15, "JL Cooper");
+		add(0x16, "Lowery");
+		add(0x17, "Lin");
+		add(0x18, "Emu");
+		add(0x1b, "Peavey");
+		add(0x1c, "Eventide");
+		add(0x20, "Bon Tempi");
+		add(0x21, "S.I.E.L.");
+		add(0x23, "SyntheAxe");
+		add(0x24, "Hohner");
+		add(0x25, "Crumar");
+		add(0x26, "Solton");
+		add(0x27, "Jellinghaus Ms");
+		add(0x28, "CTS");
+		add(0x29, "PPG");
+		add(0x2b, "Solid State Logic");
+		add(0x2f, "Elka");
+		add(0x30, "Dynacord");
+		add(0x33, "Clavia");
+		add(0x36, "Cheetah");
+		add(0x39, "Soundcraft");
+		add(0x3a, "Steinberg");
+		add(0x3e, "Waldorf");
+		add(0x3f, "Quasimidi");
+		add(0x40, "Kawai");
+		add(0x41, "Roland");
+		add(0x42, "Korg");
+		add(0x43, "Yamaha");
+		add(0x44, "Casio");
+		add(0x45, "Akai");
+		add(0x46, "Kamia Studio");
+		add(0x47, "AkaiPro");
+		add(0x48, "Victor");
+		add(0x4c, "Sony");
+		add(0x4e, "Teac");
+		add(0x50, "Matsushita");
+		add(0x51, "Fostex");
+		add(0x52, "Zoom");
+		add(0x7d, "EDU");
+		add(0x7e, "SysNR");
+		add(0x7f, "SysRT");
+
+		addExt(0x00, 0x0e, "Alesis");
+		addExt(0x00, 0x15, "KAT");
+		addExt(0x00, 0x1b, "Peavey");
+		addExt(0x00, 0x3b, "Mark Of The Unicorn");
+		addExt(0x00, 0x66, "Mackie");
+		addExt(0x20, 0x1f, "TC Electronic");
+		addExt(0x20, 0x29, "Focusrite/Novation");
+		addExt(0x20, 0x32, "Behringer");
+		addExt(0x20, 0x33, "Access Music");
+		addExt(0x20, 0x3c, "Elektron");
+		addExt(0x20, 0x6b, "Arturia");
+	}
+
+	private Manufacturers() {
+	}
+
+	private static void add(int id, String name) {
+		names[id] = name;
+	}
+
+	private static void addExt(int b1, int b2, String name) {
+		int key = ext(b1, b2);
+		int i = slot(key);
+		while (extKeys[i] != 0 && extKeys[i] != key)
+			i = (i + 1) & (EXT_SIZE - 1);
+		extKeys[i] = key;
+		extNames[i] = name;
+	}
+
+	private static int slot(int key) {
+		return ((key * 0x9e3779b1) >>> 26) & (EXT_SIZE - 1);
+	}
+
+	private static int find(int key) {
+		int i = slot(key);
+		while (extKeys[i] != 0) {
+			if (extKeys[i] == key)
+				return i;
+			i = (i + 1) & (EXT_SIZE - 1);
+		}
+		return -1;
+	}
+
+	// Extended ID encoding, as produced by MidiDecoder.decode()
+	public static int ext(int b1, int b2) {
+		return ((b1 & 0x7f) + 1) << 8 | (b2 & 0x7f);
+	}
+
+	// Display name, or null if unknown
+	public static String name(int id) {
+		if (id >= 0 && id < 128)
+			return names[id];
+		int i = find(id);
+		return i < 0 ? null : extNames[i];
+	}
+
+	// Dense index of a known ID (0-127 for one byte IDs), -1 if unknown
+	public static int index(int id) {
+		if (id >= 0 && id < 128)
+			return id;
+		int i = find(id);
+		return i < 0 ? -1 : 128 + i;
+	}
+}
@@ -0,0 +1,146 @@
+package com.ashbysoft;
+
+/*
+ * Display filter: pass/drop on the raw status byte, voice channel and
+ * sysex manufacturer ID, each a bitmask, so nothing is dumped or
+ * formatted for a dropped message. Only output is filtered: module
+ * dispatch, the trackers and stats still see every message. Types are
+ * indexed as in Metrics: 0-6 channel messages (status>>4 - 8), 7-22
+ * 0xf0-0xff. Extended (3 byte) manufacturer IDs share bit 0. By default
+ * clock and active sensing are dropped.
+ */
+public class MaskFilter implements Pipeline.Filter {
+
+	static final String[] names = {
+		"noteoff", "noteon", "poly", "cc", "prog", "chpres", "bend",
+		"sysex", "mtc", "spp", "song", "f4", "f5", "tune", "eox",
+		"clock", "tick", "start", "cont", "stop", "fd", "sense", "reset"
+	};
+
+	private static final int ALL = (1 << names.length) - 1;
+	private static final int DEFAULT = ALL & ~(1 << type(0xf8)) & ~(1 << type(0xfe));
+
+	private volatile int types = DEFAULT;
+	private volatile int channels = 0xffff;
+	private volatile long mfLo = -1L, mfHi = -1L;
+
+	static int type(int status) {
+		return status < 0xf0 ? (status >> 4) - 8 : status - 0xf0 + 7;
+	}
+
+	public boolean accept(byte[] b, int o, int n, long ts) {
+		if (n < 1)
+			return false;
+		int st = ((int) b[o]) & 0xff;
+		if (st < 0x80)
+			return true;
+		if ((types & 1 << type(st)) == 0)
+			return false;
+		if (st < 0xf0)
+			return (channels & 1 << (st & 0xf)) != 0;
+		if (0xf0 == st && n > 1) {
+			int id = b[o + 1] & 0x7f;
+			return ((id < 64 ? mfLo : mfHi) & 1L << id) != 0;
+		}
+		return true;
+	}
+
+	public void reset() {
+		types = DEFAULT;
+		channels = 0xffff;
+		mfLo = mfHi = -1L;
+	}
+
+	// Type bits for a name ("note" = on and off), or a hex status byte
+	private static int typeMask(String s) {
+		if ("note".equals(s) || "notes".equals(s))
+			return 3;
+		if ("all".equals(s))
+			return ALL;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(s))
+				return 1 << i;
+		}
+		int st = Integer.parseInt(s, 16);
+		if (st < 0x80 || st > 0xff)
+			throw new NumberFormatException("not a status byte: " + s);
+		return 1 << type(st);
+	}
+
+	/*
+	 * "pass|drop <type|status> ..", "ch all|none|<n>[,<n>..]" (0-15),
+	 * "mf all|<hex id> ..", "reset"; returns an error message or null.
+	 */
+	public String configure(String args) {
+		String[] a = args.trim().split("[\\s,]+");
+		try {
+			if ("reset".equals(a[0])) {
+				reset();
+			} else if (("pass".equals(a[0]) || "drop".equals(a[0])) && a.length > 1) {
+				int m = 0;
+				for (int i = 1; i < a.length; i++)
+					m |= typeMask(a[i]);
+				types = "pass".equals(a[0]) ? types | m : types & ~m;
+			} else if ("ch".equals(a[0]) && a.length > 1) {
+				int m = 0;
+				for (int i = 1; i < a.length; i++) {
+					if ("all".equals(a[i]))
+						m = 0xffff;
+					else if (!"none".equals(a[i]))
+						m |= 1 << (Integer.parseInt(a[i]) & 0xf);
+				}
+				channels = m;
+			} else if ("mf".equals(a[0]) && a.length > 1) {
+				long lo = 0, hi = 0;
+				if ("all".equals(a[1])) {
+					lo = hi = -1L;
+				} else {
+					for (int i = 1; i < a.length; i++) {
+						int id = Integer.parseInt(a[i], 16) & 0x7f;
+						if (id < 64)
+							lo |= 1L << id;
+						else
+							hi |= 1L << id;
+					}
+				}
+				mfLo = lo;
+				mfHi = hi;
+			} else {
+				return "invalid filter command";
+			}
+		} catch (NumberFormatException e) {
+			return "invalid filter value: " + e.getMessage();
+		}
+		return null;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("filter: pass");
+		int t = types;
+		for (int i = 0; i < names.length; i++) {
+			if ((t & 1 << i) != 0)
+				sb.append(' ').append(names[i]);
+		}
+		sb.append("; channels");
+		int c = channels;
+		if (0xffff == c) {
+			sb.append(" all");
+		} else {
+			for (int i = 0; i < 16; i++) {
+				if ((c & 1 << i) != 0)
+					sb.append(' ').append(i);
+			}
+		}
+		sb.append("; sysex");
+		long lo = mfLo, hi = mfHi;
+		if (-1L == lo && -1L == hi) {
+			sb.append(" all");
+		} else {
+			for (int i = 0; i < 128; i++) {
+				if (((i < 64 ? lo : hi) & 1L << i) != 0)
+					sb.append(' ').append(Integer.toHexString(i));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,157 @@
+package com.ashbysoft;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/*
+ * Receive path metrics: message counts per status, sysex sizes and
+ * latency histograms. All recording happens on the RX consumer thread
+ * (the driver thread only takes a nanoTime() in RxRing), so plain
+ * single-writer arrays are used rather than locks or atomics.
+ *
+ * Latencies are measured from arrival in the driver callback:
+ *   queue  - until the consumer picked it up
+ *   decode - until decoding finished
+ *   output - until the message was formatted/written
+ * and 'driver' is the driver timestamp vs. arrival, relative to the
+ * smallest offset seen (ie: delivery jitter, the clocks differ).
+ */
+public class Metrics implements Runnable {
+
+	private static final String[] names = {
+		"NoteOff", "NoteOn", "PolyPres", "Control", "Program", "ChanPres", "Pitch",
+		"Sysex", "MTC/QF", "SPP", "SongSel", "F4", "F5", "TuneReq", "EoX",
+		"Clock", "Tick", "Start", "Continue", "Stop", "FD", "Sense", "Reset"
+	};
+
+	// counts by type: 0-6 channel messages (status>>4 - 8), 7-22 0xf0-0xff
+	private long[] counts = new long[names.length];
+	private Histogram sysexSize = new Histogram();
+	private Histogram driver = new Histogram();
+	private Histogram queue = new Histogram();
+	private Histogram decode = new Histogram();
+	private Histogram output = new Histogram();
+	private long minOffsetUs = Long.MAX_VALUE;
+	private long startNs = System.nanoTime();
+
+	// periodic JSON dump
+	private File jsonFile = null;
+	private long jsonMillis = 0;
+	private Thread dumper = null;
+
+	private static int type(int status) {
+		return status < 0xf0 ? (status >> 4) - 8 : status - 0xf0 + 7;
+	}
+
+	// Called per message, on the consumer thread
+	public void record(DecodedMsg ev, long arrivalNs, long takenNs, long decodedNs, long outputNs) {
+		if (ev.status >= 0x80)
+			counts[type(ev.status)]++;
+		if (ev.isSysex())
+			sysexSize.record(ev.len);
+		if (ev.ts >= 0) {
+			long off = arrivalNs / 1000 - ev.ts;
+			if (off < minOffsetUs)
+				minOffsetUs = off;
+			driver.record((off - minOffsetUs) * 1000);
+		}
+		queue.record(takenNs - arrivalNs);
+		decode.record(decodedNs - arrivalNs);
+		output.record(outputNs - arrivalNs);
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+		sysexSize.reset();
+		driver.reset();
+		queue.reset();
+		decode.reset();
+		output.reset();
+		minOffsetUs = Long.MAX_VALUE;
+		startNs = System.nanoTime();
+	}
+
+	public String toString() {
+		long el = Math.max(1, System.nanoTime() - startNs);
+		StringBuffer sb = new StringBuffer();
+		sb.append("over ").append(el / 1000000).append("ms\n");
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				sb.append("  ").append(names[i]).append(": ").append(counts[i]);
+				sb.append(" (").append(counts[i] * 1000000000L / el).append("/s)\n");
+			}
+		}
+		sb.append("  sysex bytes: ").append(sysexSize.summary(1)).append('\n');
+		sb.append("  latency us: driver ").append(driver.summary(1000)).append('\n');
+		sb.append("              queue  ").append(queue.summary(1000)).append('\n');
+		sb.append("              decode ").append(decode.summary(1000)).append('\n');
+		sb.append("              output ").append(output.summary(1000));
+		return sb.toString();
+	}
+
+	public String toJson() {
+		long el = Math.max(1, System.nanoTime() - startNs);
+		StringBuffer sb = new StringBuffer("{\"elapsedMs\":");
+		sb.append(el / 1000000).append(",\"counts\":{");
+		boolean first = true;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				if (!first)
+					sb.append(',');
+				sb.append('"').append(names[i]).append("\":").append(counts[i]);
+				first = false;
+			}
+		}
+		sb.append("},\"sysexBytes\":").append(sysexSize.toJson(1));
+		sb.append(",\"latencyUs\":{\"driver\":").append(driver.toJson(1000));
+		sb.append(",\"queue\":").append(queue.toJson(1000));
+		sb.append(",\"decode\":").append(decode.toJson(1000));
+		sb.append(",\"output\":").append(output.toJson(1000));
+		sb.append("}}\n");
+		return sb.toString();
+	}
+
+	/* Periodic JSON dump */
+
+	public synchronized void dumpTo(File f, long millis) {
+		jsonFile = f;
+		jsonMillis = millis;
+		if (f != null && dumper == null) {
+			dumper = new Thread(this, "MidiFun-stats");
+			dumper.setDaemon(true);
+			dumper.start();
+		} else if (f == null && dumper != null) {
+			dumper.interrupt();
+			dumper = null;
+		}
+	}
+
+	public void run() {
+		while (true) {
+			File f;
+			long ms;
+			synchronized (this) {
+				f = jsonFile;
+				ms = jsonMillis;
+			}
+			if (f == null)
+				return;
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				File tmp = new File(f.getPath() + ".tmp");
+				FileWriter w = new FileWriter(tmp);
+				w.write(toJson());
+				w.close();
+				tmp.renameTo(f);
+			} catch (IOException e) {
+				System.err.println("Unable to write stats: " + e);
+			}
+		}
+	}
+}
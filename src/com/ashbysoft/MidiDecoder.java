@@ -1,7 +1,5 @@
 package com.ashbysoft;
 
-import java.util.HashMap;
-
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.SysexMessage;
@@ -18,27 +16,8 @@ public class MidiDecoder {
 			"TuneReq", "Eox", "Clock", "Tick", "Start", "Cont", "Stop", "?FD",
 			"Sense", "Reset" };
 
-	// Sysex manufacturer codes
-	private HashMap<Integer, String> mCodes = new HashMap<Integer, String>();
-	/*
-	 * Sequential Circuits 1 Big Briar 2 Octave / Plateau 3 Moog 4 Passport
-	 * Designs 5 Lexicon 6 Kurzweil 7 Fender 8 Gulbransen 9 Delta Labs 0x0A
-	 * Sound Comp. 0x0B General Electro 0x0C Techmar 0x0D Matthews Research 0x0E
-	 * Oberheim 0x10 PAIA 0x11 Simmons 0x12 DigiDesign 0x13 Fairlight 0x14
-	 * Peavey 0x1B JL Cooper 0x15 Lowery 0x16 Lin 0x17 Emu 0x18 Bon Tempi 0x20
-	 * S.I.E.L. 0x21 SyntheAxe 0x23 Hohner 0x24 Crumar 0x25 Solton 0x26
-	 * Jellinghaus Ms 0x27 CTS 0x28 PPG 0x29 Elka 0x2F Cheetah 0x36 Waldorf 0x3E
-	 * Kawai 0x40 Roland 0x41 Korg 0x42 Yamaha 0x43 Casio 0x44 Akai 0x45
-	 * Kamia Studio 0x46 AkaiPro 0x47
-	 */
-	
 	public MidiDecoder(SysexLoader mfun) {
 		this.mfun = mfun;
-		// TODO: lots of other manufacturers?
-		mCodes.put(new Integer(0x43), "Yamaha");
-		mCodes.put(new Integer(0x44), "Casio");
-		mCodes.put(new Integer(0x45), "Akai");
-		mCodes.put(new Integer(0x47), "AkaiPro");
 	}
 
 	public String hex(int v) {
@@ -47,127 +26,230 @@ public class MidiDecoder {
 	}
 	
 	public String decodeMsg(MidiMessage msg, boolean verb) {
-		// See what we have.. channel/voice message or common/realtime?
-		int st, ch = -1;
-		String cmd;
-		if (msg.getStatus() >= 0x80 && msg.getStatus() < 0xf0) {
+		DecodedMsg ev = new DecodedMsg();
+		decode(msg, -1, ev);
+		return format(ev, verb);
+	}
+
+	/*
+	 * Fast path: fill in a re-usable DecodedMsg without building any text.
+	 * ShortMessages are read via getStatus()/getData1()/getData2() which do
+	 * not copy, other messages are read with a single getMessage().
+	 */
+	public DecodedMsg decode(MidiMessage msg, long ts, DecodedMsg ev) {
+		if (msg instanceof ShortMessage) {
+			ShortMessage sm = (ShortMessage) msg;
+			int n = sm.getLength();
+			ev.shortBuf[0] = (byte) sm.getStatus();
+			if (n > 1)
+				ev.shortBuf[1] = (byte) sm.getData1();
+			if (n > 2)
+				ev.shortBuf[2] = (byte) sm.getData2();
+			return decode(ev.shortBuf, 0, n, ts, ev);
+		}
+		return decode(msg.getMessage(), 0, msg.getLength(), ts, ev);
+	}
+
+	public DecodedMsg decode(byte[] b, int o, int n, long ts, DecodedMsg ev) {
+		ev.clear();
+		ev.data = b;
+		ev.off = o;
+		ev.len = n;
+		ev.ts = ts;
+		if (n < 1)
+			return ev;
+		int st = ((int) b[o]) & 0xff;
+		if (st >= 0x80 && st < 0xf0) {
 			// channel message - mask out channel ID
-			st = (msg.getStatus() & 0xf0);
-			ch = msg.getStatus() & 0xf;
-			cmd = vNames[st / 16 - 8];
+			ev.status = st & 0xf0;
+			ev.channel = st & 0xf;
+		} else {
+			ev.status = st;
+		}
+		if (SysexMessage.SYSTEM_EXCLUSIVE == ev.status) {
+			// manufacturer ID
+			int off = o + 1;
+			if (off < o + n) {
+				int mid = ((int) b[off++]) & 0xff;
+				if (0 == mid && off + 1 < o + n) {
+					// extended ID for late-comers :)
+					mid = (((int) b[off++]) & 0xff) + 1;
+					mid <<= 8;
+					mid |= ((int) b[off++] & 0xff);
+				}
+				ev.mfId = mid;
+				ev.body = off;
+			}
 		} else {
-			st = msg.getStatus();
-			cmd = cNames[st & 0xf];
+			if (n > 1)
+				ev.data1 = ((int) b[o + 1]) & 0xff;
+			if (n > 2)
+				ev.data2 = ((int) b[o + 2]) & 0xff;
 		}
+		return ev;
+	}
+
+	// Pass sysex to its module (no text), eg: to complete pending requests; identity replies bind their module
+	public void dispatch(DecodedMsg ev) {
+		if (ev.isSysex() && 0x7e == ev.mfId) {
+			identify(ev.port, ev.cursor.set(ev.data, ev.body, ev.off + ev.len));
+		} else if (ev.isSysex() && ev.mfId >= 0) {
+			SysexModule mod = mfun.module(ev.port, ev.mfId, device(ev));
+			if (mod != null)
+				mod.handleSysex(ev.data, ev.body, ev.off + ev.len);
+		}
+	}
+
+	// Identity response: find (or load) the module for it and pass on the details
+	private void identify(int port, SysexCursor c) {
+		int dev = c.next();
+		if (c.next() != 0x06 || c.next() != 0x02)
+			return;
+		int mf = c.next();
+		if (0 == mf)
+			mf = Manufacturers.ext(c.next(), c.next());
+		int fam = c.next() << 8 | c.next();
+		int prod = c.next() << 8 | c.next();
+		int ver = c.next() << 24 | c.next() << 16 | c.next() << 8 | c.next();
+		if (c.overrun())
+			return;
+		SysexModule sx = mfun.identify(port, mf, dev);
+		if (sx != null)
+			sx.idInfo(mf, fam, prod, ver);
+	}
+
+	// Device ID of a sysex message: the byte after the manufacturer ID, -1 if none
+	private static int device(DecodedMsg ev) {
+		return ev.body < ev.off + ev.len ? ev.data[ev.body] : -1;
+	}
+
+	// Would format() produce anything for this message?
+	public boolean visible(DecodedMsg ev, boolean verb) {
+		return ev.len > 0 && (verb || ev.status != ShortMessage.ACTIVE_SENSING);
+	}
+
+	public String format(DecodedMsg ev, boolean verb) {
+		if (!visible(ev, verb))
+			return null;
 		StringBuffer sb = new StringBuffer("  ");
-		sb.append(cmd);
-		if (ch != -1)
-			sb.append('[').append(ch).append(']');
+		format(ev, sb);
+		return sb.toString();
+	}
+
+	public void format(DecodedMsg ev, StringBuffer sb) {
+		int st = ev.status;
+		if (ev.channel != -1)
+			sb.append(vNames[st / 16 - 8]).append('[').append(ev.channel).append(']');
+		else
+			sb.append(cNames[st & 0xf]);
 
 		// Extra decoding for certain messages...
 		switch (st) {
 		case SysexMessage.SYSTEM_EXCLUSIVE:
-			decodeSysex(msg.getMessage(), sb);
+			decodeSysex(ev, sb);
 			break;
 		case ShortMessage.NOTE_ON:
 		case ShortMessage.NOTE_OFF:
-			sb.append(": ").append(msg.getMessage()[1]).append(" V:")
-					.append(msg.getMessage()[2]);
+			sb.append(": ").append(ev.data1).append(" V:").append(ev.data2);
 			break;
 		case ShortMessage.CONTROL_CHANGE:
-			sb.append(": ID:").append(msg.getMessage()[1]).append(" V:")
-					.append(msg.getMessage()[2]);
+			sb.append(": ID:").append(ev.data1).append(" V:").append(ev.data2);
 			break;
 		case ShortMessage.SONG_POSITION_POINTER:
-			int pos = (((int) msg.getMessage()[2]) & 0xff) << 7;
-			pos |= ((int) msg.getMessage()[1] & 0x7f);
+			int pos = (ev.data2 & 0x7f) << 7;
+			pos |= (ev.data1 & 0x7f);
 			sb.append(": Pos:").append(pos);
 			break;
+		case ShortMessage.MIDI_TIME_CODE:
+			sb.append(": ").append(ev.data1 >> 4 & 7).append('=').append(ev.data1 & 0xf);
+			break;
 		case ShortMessage.SONG_SELECT:
-			sb.append(" Song:").append(msg.getMessage()[1]);
+			sb.append(" Song:").append(ev.data1);
 			break;
-		case ShortMessage.ACTIVE_SENSING:
-			// Skip unless we are being verbose
-			if (!verb)
-				return null;
 		}
-		return sb.toString();
 	}
 
-	private void decodeSysex(byte[] b, StringBuffer sb) {
-		// check manufacturer ID
-		int off = 1;
-		int mid = ((int) b[off++]) & 0xff;
-		if (0 == mid) {
-			// extended ID for late-comers :)
-			mid = (((int) b[off++]) & 0xff) + 1;
-			mid <<= 8;
-			mid |= ((int) b[off++] & 0xff);
-		}
-		if (0x7d == mid) {
+	private void decodeSysex(DecodedMsg ev, StringBuffer sb) {
+		// manufacturer ID already extracted by decode()
+		SysexCursor c = ev.cursor.set(ev.data, ev.body, ev.off + ev.len);
+		int mid = ev.mfId;
+		if (mid < 0) {
+			sb.append(": ??");
+		} else if (0x7d == mid) {
 			// educational
 			sb.append(": EDU");
 		} else if (0x7e == mid) {
 			// system non-realtime
 			sb.append(": SysNR");
-			decodeSysNR(b, off, sb);
+			decodeSysNR(c, sb);
 		} else if (0x7f == mid) {
 			// system realtime
 			sb.append(": SysRT");
-			decodeSysRT(b, off, sb);
+			decodeSysRT(c, sb);
 		} else {
-			String mf = (String) mCodes.get(new Integer(mid));
+			String mf = Manufacturers.name(mid);
 			if (mf != null) {
 				sb.append(": ").append(mf);
-				SysexModule mod = mfun.loadModule(mf);
-				if (mod != null) {
-					mod.decodeSysex(b, off, sb);
-				} else {
-					sb.append(": unable to load decoder");
-				}
+				SysexModule mod = mfun.module(ev.port, mid, device(ev));
+				if (mod != null)
+					mod.decodeSysex(c, sb);
 			} else {
 				sb.append(": ??");
 			}
 		}
 	}
 	
-	private void decodeSysNR(byte[] b, int o, StringBuffer sb) {
-		// ignore channel ID...
-		o++;
-		// grab sub-ID/ID2
-		byte sid = b[o++];
-		byte si2 = b[o++];
+	private void decodeSysNR(SysexCursor c, StringBuffer sb) {
+		// skip channel (device) ID, grab sub-ID/ID2
+		c.next();
+		int sid = c.next();
+		int si2 = c.next();
 		// check what we have
 		if (0x06 == sid && 0x02 == si2) {
 			// Identity response
-			int  mf = ((int)b[o++]) & 0xff;		// XXXX: Should this use extended mechanism??
-			String id = mCodes.get(new Integer(mf));
+			int mf = c.next();
+			if (0 == mf) {
+				// extended ID
+				mf = Manufacturers.ext(c.next(), c.next());
+			}
+			String id = Manufacturers.name(mf);
 			if (id == null) {
 				id = "Unknown";
 			}
-			byte f1 = b[o++];
-			byte f2 = b[o++];
-			byte p1 = b[o++];
-			byte p2 = b[o++];
-			byte v1 = b[o++];
-			byte v2 = b[o++];
-			byte v3 = b[o++];
-			byte v4 = b[o++];
+			int f1 = c.next();
+			int f2 = c.next();
+			int p1 = c.next();
+			int p2 = c.next();
+			int v1 = c.next();
+			int v2 = c.next();
+			int v3 = c.next();
+			int v4 = c.next();
+			if (c.overrun()) {
+				sb.append(": Identity: truncated");
+				return;
+			}
 			sb.append(": Identity: ").append(id).append('(').append(hex(mf)).append(')');
 			sb.append(": family:").append(hex(f1)).append(hex(f2));
 			sb.append(": product:").append(hex(p1)).append(hex(p2));
 			sb.append(": version:").append(hex(v1)).append(hex(v2)).append(hex(v3)).append(hex(v4));
-			SysexModule sx = mfun.loadModule(id);
-			if (sx != null) {
-				// Pass on ID response
-				sx.idInfo(mf, (int)f1 << 8 | (int)f2, (int)p1 << 8 | (int)p2,
-					(int)v1 << 24 | (int)v2 << 16 | (int)v3 << 8 | (int)v4);
-			}
 		}
 	}
 	
-	private void decodeSysRT(byte[] b, int o, StringBuffer sb) {
-		// TODO: MTC decoder
-		sb.append(": TODO");
+	private void decodeSysRT(SysexCursor c, StringBuffer sb) {
+		// ignore channel ID, grab sub-ID/ID2
+		c.skip(1);
+		int sid = c.next();
+		int si2 = c.next();
+		if (c.overrun()) {
+			sb.append(": truncated");
+		} else if (0x01 == sid && 0x01 == si2 && c.has(4)) {
+			// MTC full frame
+			int hr = c.next();
+			sb.append(": MTC full frame ");
+			MtcDecoder.appendTime(sb, hr & 0x1f, c.next(), c.next(), c.next());
+			sb.append(' ').append(MtcDecoder.rateNames[(hr >> 5) & 3]).append("fps");
+		} else {
+			sb.append(": ").append(hex(sid)).append('/').append(hex(si2));
+		}
 	}
 }
@@ -6,11 +6,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
-import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Iterator;
 
-import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
@@ -18,20 +16,117 @@ import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequencer;
 import javax.sound.midi.Synthesizer;
-import javax.sound.midi.SysexMessage;
-import javax.sound.midi.Transmitter;
 
-public class MidiFun implements Receiver, SysexLoader {
+public class MidiFun implements RxMerge.Sink {
 
-	private MidiDevice hwIn = null, hwOut = null;
+	// selected devices: input port n is ins.get(n), output port n outs.get(n)
+	private List<MidiDevice> ins = new ArrayList<MidiDevice>();
+	private List<MidiDevice> outs = new ArrayList<MidiDevice>();
 
-	private Receiver rOut = null;
+	// -Dmidifun.virtual=12|16|24[,..]: no hardware, simulated DPSs on loopback devices
+	private LoadGen gen = null;
 
-	private boolean verb = false;
+	private volatile boolean verb = false;
 
-	private MidiDecoder dec = new MidiDecoder(this);
+	// sysex modules, an instance per input port and device
+	private ModuleTable modules = new ModuleTable();
 
-	private HashMap<String, SysexModule> mods = new HashMap<String, SysexModule>();
+	private MidiDecoder dec = new MidiDecoder(modules);
+
+	// first command word -> module names, from getCommands()
+	private volatile CommandTrie<String> cmdTrie = new CommandTrie<String>();
+
+	// runs commands, with wait/repeat/parallel/& around them
+	private CommandExecutor exec = new CommandExecutor(new CommandExecutor.Handler() {
+		public void handle(String cmd) {
+			handleCommand(cmd);
+		}
+	}, modules);
+
+	// re-used for every received message, only touched by the consumer thread
+	private StringBuffer rxText = new StringBuffer();
+
+	// raw status/channel/manufacturer filter on what is shown; modules, trackers and stats see everything
+	private MaskFilter mask = new MaskFilter();
+
+	// timecode analysis, sees quarter frames before the display filter
+	private MtcDecoder mtc = new MtcDecoder();
+
+	// batched stdout for RX/TX dumps and decoded messages
+	private DumpWriter out = new DumpWriter();
+
+	// tempo/transport from MIDI clock, a status line instead of every tick
+	private ClockTracker clock = new ClockTracker(out);
+
+	// held notes, controllers and programs per channel, stuck note reports
+	private VoiceTracker voices = new VoiceTracker(out);
+
+	// filter -> decode -> transform -> sink, run on the consumer thread; printed
+	// before dispatch, so what a message completes follows it in the output
+	private Pipeline pipe = new Pipeline(dec).addFilter(mtc).addFilter(clock).addFilter(voices).addSink(new Pipeline.Sink() {
+		public void receive(DecodedMsg ev) {
+			if (!mask.accept(ev.data, ev.off, ev.len, ev.ts))
+				return;
+			dumpMsg(prefix(ev.port), ev.data, ev.off, ev.len);
+			if (dec.visible(ev, verb)) {
+				rxText.setLength(0);
+				dec.format(ev, rxText.append("  "));
+				out.println(rxText);
+			}
+		}
+	}).addSink(new Pipeline.Sink() {
+		public void receive(DecodedMsg ev) {
+			dec.dispatch(ev);
+		}
+	});
+
+	// driver callbacks -> per port rings -> one merged decode/output thread
+	private RxMerge rx = null;
+
+	// split sysex -> whole messages, between rx and receive()
+	private SysexAssembler sysex = null;
+
+	// receive path counters/latencies, written by the consumer thread
+	private Metrics stats = new Metrics();
+
+	// SMF capture of the RX stream, null when not recording
+	private volatile SmfRecorder rec = null;
+
+	// SMF playback to the first output, null when not playing
+	private SmfPlayer play = null;
+
+	// what actually goes out on the wire of one output port
+	class Wire implements Receiver {
+		final String pfx;
+		final Receiver r;
+
+		Wire(String pfx, Receiver r) {
+			this.pfx = pfx;
+			this.r = r;
+		}
+
+		public void close() {
+		}
+
+		public void send(MidiMessage msg, long ts) {
+			dumpMsg(pfx, msg);
+			if (r != null)
+				r.send(msg, ts);
+		}
+	}
+
+	// everything sent to the hardware is queued/rate limited here, per output port,
+	// except playback, which keeps its own timing and goes straight to the wire
+	private TxScheduler[] txs;
+	private Receiver[] wires;
+	// the first output: default for builtins
+	private TxScheduler tx;
+
+	// fan-out of received messages to the outputs
+	private Router router;
+
+	// "RX: ", "RX1: ", ..
+	private String[] rxPfx = new String[0];
 
 	public static void main(String[] args) {
 		MidiFun me = new MidiFun();
@@ -58,11 +153,19 @@ public class MidiFun implements Receiver, SysexLoader {
 	}
 
 	private void run(List<String> args) {
+		modules.discover();
+		modules.setClock(clock);
+		modules.setOutput(out);
+		out.setStamps(Boolean.getBoolean("midifun.stamp"));
+		buildTrie();
 		if (!findDevices()) {
 			System.err.println("Cannot find any usable MIDI devices..");
 			System.exit(0);
 		}
 		if (openHardwareDevices()) {
+			out.start();
+			clock.start();
+			voices.start();
 			System.out.println("Press <Return> to quit, i<Return> to send ID request, ? for help.");
 			try {
 				BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
@@ -73,7 +176,9 @@ public class MidiFun implements Receiver, SysexLoader {
 					} else {
 						cmd = r.readLine();
 					}
-					handleCommand(cmd);
+					out.flush();
+					exec.execute(cmd);
+					out.flush();
 				} while (cmd.length() > 0);
 				System.out.println("Done.");
 			} catch (IOException e) {
@@ -86,6 +191,25 @@ public class MidiFun implements Receiver, SysexLoader {
 	}
 	
 	private boolean findDevices() {
+		String virt = System.getProperty("midifun.virtual");
+		if (virt != null) {
+			String[] sizes = virt.length() > 0 ? virt.split(",") : new String[] { "12" };
+			for (int i = 0; i < sizes.length; i++) {
+				int size = Integer.parseInt(sizes[i].trim());
+				VirtualMidiDevice vdev = new VirtualMidiDevice("Virtual DPS" + size);
+				DpsSimulator dps = new DpsSimulator(vdev, size, 0);
+				vdev.setFarEnd(dps);
+				if (gen == null)
+					gen = new LoadGen(vdev, dps);
+				ins.add(vdev);
+				outs.add(vdev);
+				System.out.println("DEV[v" + i + "]: " + vdev.getDeviceInfo().getName() + "\n  INPUT " + i + "\n  OUTPUT " + i);
+			}
+			return true;
+		}
+		// -Dmidifun.in / -Dmidifun.out: "all" or DEV numbers, default the first of each
+		String selIn = System.getProperty("midifun.in");
+		String selOut = System.getProperty("midifun.out");
 		MidiDevice.Info[] devs = MidiSystem.getMidiDeviceInfo();
 		for (int i = 0; devs != null && i < devs.length; i++) {
 			System.out.println("DEV[" + i + "]: " + devs[i].getName() + '/' + devs[i].getDescription() + '/' + devs[i].getVendor()
@@ -96,30 +220,70 @@ public class MidiFun implements Receiver, SysexLoader {
 					dev.getMaxReceivers());
 				// Detect a hardware interface..
 				if (!(dev instanceof Synthesizer) && !(dev instanceof Sequencer)) {
-					if (hwIn==null && dev.getMaxTransmitters()!=0) {
-						hwIn = dev;
-						System.out.println("  INPUT");
+					if (dev.getMaxTransmitters()!=0 && selected(selIn, i, ins.isEmpty())) {
+						ins.add(dev);
+						System.out.println("  INPUT " + (ins.size() - 1));
 					}
-					if (hwOut==null && dev.getMaxReceivers()!=0) {
-						hwOut = dev;
-						System.out.println("  OUTPUT");
+					if (dev.getMaxReceivers()!=0 && selected(selOut, i, outs.isEmpty())) {
+						outs.add(dev);
+						System.out.println("  OUTPUT " + (outs.size() - 1));
 					}
 				}
 			} catch (Exception e) {
 				System.out.println(" unopenable: "+e);
 			}
 		}
-		return hwIn!=null;
+		return !ins.isEmpty();
+	}
+
+	private static boolean selected(String sel, int dev, boolean first) {
+		if (sel == null)
+			return first;
+		if ("all".equals(sel))
+			return true;
+		String[] a = sel.split(",");
+		for (int i = 0; i < a.length; i++) {
+			if (a[i].trim().equals(Integer.toString(dev)))
+				return true;
+		}
+		return false;
+	}
+
+	private static String prefix(String dir, int port) {
+		return dir + (port > 0 ? Integer.toString(port) : "") + ": ";
+	}
+
+	private String prefix(int port) {
+		return port < rxPfx.length ? rxPfx[port] : prefix("RX", port);
 	}
 
 	private boolean openHardwareDevices() {
 		try {
-			hwIn.open();
-			Transmitter tx = hwIn.getTransmitter();
-			tx.setReceiver(this);
-			if (hwOut!=null) {
-				hwOut.open();
-				rOut = hwOut.getReceiver();
+			modules.open(ins.size());
+			txs = new TxScheduler[Math.max(1, outs.size())];
+			wires = new Receiver[txs.length];
+			Receiver[] routed = new Receiver[txs.length];
+			for (int o = 0; o < txs.length; o++) {
+				Receiver r = null;
+				if (o < outs.size()) {
+					outs.get(o).open();
+					r = outs.get(o).getReceiver();
+				}
+				wires[o] = new Wire(prefix("TX", o), r);
+				txs[o] = new TxScheduler(wires[o]);
+				routed[o] = txs[o].uncoalesced();
+			}
+			tx = txs[0];
+			router = new Router(routed, ins.size());
+			rxPfx = new String[ins.size()];
+			for (int p = 0; p < rxPfx.length; p++)
+				rxPfx[p] = prefix("RX", p);
+			sysex = new SysexAssembler(ins.size(), Integer.getInteger("midifun.sysexmax", 65536), this);
+			rx = new RxMerge(ins.size(), 4096, 64, sysex);
+			rx.start();
+			for (int p = 0; p < ins.size(); p++) {
+				ins.get(p).open();
+				ins.get(p).getTransmitter().setReceiver(rx.receiver(p));
 			}
 			return true;
 		} catch (MidiUnavailableException e) {
@@ -129,10 +293,30 @@ public class MidiFun implements Receiver, SysexLoader {
 	}
 
 	private void stop() {
-		if (hwIn != null)
-			hwIn.close();
-		if (hwOut != null)
-			hwOut.close();
+		exec.shutdown();
+		if (gen != null)
+			gen.stop();
+		for (int p = 0; p < ins.size(); p++)
+			ins.get(p).close();
+		play(null);
+		// queued output goes out before the ports close
+		for (int o = 0; txs != null && o < txs.length; o++)
+			txs[o].close();
+		for (int o = 0; o < outs.size(); o++)
+			outs.get(o).close();
+		if (rx != null)
+			rx.stop();
+		record(null);
+		clock.stop();
+		voices.stop();
+		out.stop();
+		if (rx != null && rx.getDropped() > 0)
+			System.err.println("RX ring overflowed, " + rx);
+	}
+
+	// TX queue for commands to a module instance on input port p: the output with the same number
+	private Receiver txFor(int p) {
+		return p < txs.length ? txs[p] : tx;
 	}
 
 	private void handleCommand(String cmd) {
@@ -141,101 +325,320 @@ public class MidiFun implements Receiver, SysexLoader {
 		} else if ("i".equals(cmd)) {
 			// ID command
 			sendID();
+		} else if ("q".equals(cmd)) {
+			System.out.println(rx);
+			System.out.println(sysex);
+			for (int o = 0; o < txs.length; o++)
+				System.out.println((txs.length > 1 ? o + " " : "") + txs[o]);
+		} else if (cmd.startsWith("rate")) {
+			// TX rate limit, all outputs
+			int o = cmd.indexOf(' ');
+			try {
+				for (int i = 0; i < txs.length; i++) {
+					if (o > 0)
+						txs[i].setRate(Integer.parseInt(cmd.substring(o + 1).trim()));
+					System.out.println((txs.length > 1 ? i + " " : "") + txs[i]);
+				}
+			} catch (NumberFormatException e) {
+				System.out.println("invalid rate: " + e.getMessage());
+			}
+		} else if ("ports".equals(cmd)) {
+			for (int p = 0; p < ins.size(); p++)
+				System.out.println("in " + p + ": " + ins.get(p).getDeviceInfo().getName());
+			for (int p = 0; p < outs.size(); p++)
+				System.out.println("out " + p + ": " + outs.get(p).getDeviceInfo().getName());
+			Iterator<ModuleTable.Entry> it = modules.entries().iterator();
+			while (it.hasNext())
+				System.out.println("module " + it.next().getName());
+		} else if ("route".equals(cmd) || cmd.startsWith("route ")) {
+			// Routing table
+			if (cmd.length() > 6) {
+				String err = router.configure(cmd.substring(6));
+				if (err != null)
+					System.out.println(err);
+			}
+			System.out.println(router);
+		} else if ("stats".equals(cmd) || cmd.startsWith("stats ")) {
+			statsCommand(cmd);
+		} else if ("filter".equals(cmd) || cmd.startsWith("filter ")) {
+			// Receive filter
+			if (cmd.length() > 7) {
+				String err = mask.configure(cmd.substring(7));
+				if (err != null)
+					System.out.println(err);
+			}
+			System.out.println(mask);
+			System.out.println(pipe);
+		} else if ("mtc".equals(cmd) || "mtc reset".equals(cmd)) {
+			// Timecode status
+			System.out.println(mtc);
+			if (cmd.endsWith("reset"))
+				mtc.reset();
+		} else if ("clock".equals(cmd) || cmd.startsWith("clock ")) {
+			// Tempo/transport status
+			if (cmd.length() > 6) {
+				String err = clock.configure(cmd.substring(6));
+				if (err != null)
+					System.out.println(err);
+			}
+			System.out.println(clock);
+		} else if ("notes".equals(cmd) || cmd.startsWith("notes ")) {
+			notesCommand(cmd.substring(5).trim());
 		} else if ("v".equals(cmd)) {
 			verb = !verb;
 			System.out.println("verbose="+verb);
+		} else if (cmd.startsWith("rec")) {
+			// Record command
+			int o = cmd.indexOf(' ');
+			record(o > 0 ? cmd.substring(o + 1).trim() : null);
+		} else if (cmd.startsWith("play")) {
+			// Play command
+			int o = cmd.indexOf(' ');
+			play(o > 0 ? cmd.substring(o + 1).trim() : null);
+		} else if (cmd.startsWith("gen")) {
+			// Load generator command
+			int o = cmd.indexOf(' ');
+			generate(o > 0 ? cmd.substring(o + 1).trim() : null);
 		} else if (cmd.startsWith("load")) {
 			// Load command
 			int o = cmd.indexOf(' ');
 			if (o > 0) {
-				loadModule(cmd.substring(o + 1).trim());
+				modules.loadModule(cmd.substring(o + 1).trim());
+				buildTrie();
 			} else {
 				System.out.println("invalid load <module> command");
 			}
 		} else if (cmd.startsWith("?")) {
 			// Help command
-			System.out.println("Builtins: i[dentify], v[erbosity], load <sysex module>");
-			Iterator<String> it = mods.keySet().iterator();
+			System.out.println("Builtins: i[dentify], v[erbosity], q[ueue stats], rate <tx bytes/s>, stats [reset|json <file> [<secs>]|json off], filter [reset|pass|drop <type|status> ..|ch all|none|<n> ..|mf all|<id> ..], mtc [reset], clock [<ms>|off|bar <beats>|reset], notes [<channel>|panic [<out>]|stuck <ms>|stuck off|reset|clear], ports, route [add <in>|* <out> [<types>|* [<channels>|* [<mf ids>]]]|del <n>|clear|reset], [@<port>[:<device>]] <module command>, wait [<ms>], repeat <n> <command>, parallel <command>; <command> .., <command> &, rec[ord] [<file.mid> [0|1]], play [<file.mid>], gen [clock=<n> notes=<n> cc=<n> sysex=<n> secs=<n>], load <sysex module>");
+			Iterator<String> it = modules.modules().keySet().iterator();
 			while (it.hasNext()) {
 				String mod = it.next();
-				String[] cmds = mods.get(mod).getCommands();
+				String[] cmds = modules.modules().get(mod).getCommands();
 				for (int i = 0; i < cmds.length; i++) {
 					System.out.println(mod + ": " + cmds[i]);
 				}
 			}
 		} else {
-			// Try modules
-			Receiver rcv = new Receiver() {
-				public void close() {
+			// Try modules, all instances or those on @<port>[:<device>]
+			int port = -1, dev = -1;
+			if (cmd.startsWith("@") && cmd.indexOf(' ') > 0) {
+				String[] t = cmd.substring(1, cmd.indexOf(' ')).split(":");
+				try {
+					port = Integer.parseInt(t[0]);
+					if (t.length > 1)
+						dev = Integer.parseInt(t[1]);
+				} catch (NumberFormatException e) {
+					System.out.println("invalid @<port>[:<device>]: " + e.getMessage());
+					return;
 				}
-
-				public void send(MidiMessage msg, long ts) {
-					dumpMsg("TX: ", msg);
-					rOut.send(msg, ts);
-				}			
-			};
-			Iterator<String> it = mods.keySet().iterator();
+				cmd = cmd.substring(cmd.indexOf(' ') + 1).trim();
+			}
+			// only modules that have this command, or all if none claims it
+			List<String> owners = cmdTrie.get(cmd);
+			Iterator<ModuleTable.Entry> it = modules.entries().iterator();
 			while (it.hasNext()) {
-				String mod = it.next();
+				ModuleTable.Entry e = it.next();
+				if (port >= 0 && !e.matches(port, dev))
+					continue;
+				if (owners != null && !owners.contains(e.mod.getClass().getSimpleName()))
+					continue;
 				String res;
-				if ((res = mods.get(mod).command(cmd, rcv)) != null) {
-					System.out.println(mod + ": " + res);
+				if ((res = e.mod.command(cmd, txFor(e.port))) != null) {
+					out.println(e.getName() + ": " + res);
 				}
 			}
 		}
 	}
 
-	private void sendID() {
-		SysexMessage sx = new SysexMessage();
-		byte[] id = { 0x7e, 0x7f, 0x06, 0x01, (byte) 0xf7 };
-		try {
-			sx.setMessage(SysexMessage.SYSTEM_EXCLUSIVE, id, id.length);
-			dumpMsg("TX: ", sx);
-			rOut.send(sx, -1);
-		} catch (InvalidMidiDataException e) {
+	private void record(String args) {
+		SmfRecorder r = rec;
+		if (r != null) {
+			rec = null;
+			try {
+				r.close();
+				System.out.println("Recording stopped, " + r);
+			} catch (IOException e) {
+				System.err.println("Unable to close recording: " + e);
+			}
+		}
+		if (args != null && args.length() > 0) {
+			String[] a = args.split("\\s+");
+			int type = 1;
+			try {
+				if (a.length > 1)
+					type = Integer.parseInt(a[1]);
+			} catch (NumberFormatException e) {
+				System.out.println("invalid file type: " + e.getMessage());
+				return;
+			}
+			try {
+				rec = new SmfRecorder(new File(a[0]), type);
+				System.out.println("Recording to " + a[0]);
+			} catch (IOException e) {
+				System.err.println("Unable to record to " + a[0] + ": " + e);
+			}
 		}
 	}
 
-	public SysexModule loadModule(String id) {
-		SysexModule mod = mods.get(id);
-		if (mod == null) {
+	private void play(String file) {
+		if (play != null) {
+			boolean was = play.isPlaying();
+			play.stop();
+			System.out.println("Playback " + (was ? "stopped" : "finished") + ", " + play);
+			play = null;
+		}
+		if (file != null && file.length() > 0) {
+			if (outs.isEmpty()) {
+				System.out.println("No MIDI output to play to");
+				return;
+			}
 			try {
-				mod = (SysexModule) Class.forName("com.ashbysoft." + id).newInstance();
-				mods.put(id, mod);
-			} catch (InstantiationException e) {
-				e.printStackTrace();
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
+				play = new SmfPlayer(new File(file), wires[0]);
+				play.start();
+				System.out.println("Playing " + file);
+			} catch (IOException e) {
+				System.err.println("Unable to play " + file + ": " + e);
 			}
 		}
-		return mod;
 	}
 
-	/* Receiver interface */
+	private void generate(String args) {
+		if (gen == null) {
+			System.out.println("Load generator needs -Dmidifun.virtual");
+			return;
+		}
+		if (gen.isRunning()) {
+			gen.stop();
+		}
+		if (args != null && args.length() > 0) {
+			String err = gen.configure(args);
+			if (err != null) {
+				System.out.println(err);
+				return;
+			}
+			gen.start();
+			System.out.println("Generating " + gen);
+		} else {
+			System.out.println("Generator " + gen);
+		}
+	}
 
-	public void close() {
+	private void statsCommand(String cmd) {
+		String[] a = cmd.trim().split("\\s+");
+		if (a.length == 1) {
+			System.out.println(rx);
+			System.out.println(stats);
+		} else if ("reset".equals(a[1])) {
+			stats.reset();
+			System.out.println("stats reset");
+		} else if ("json".equals(a[1]) && a.length > 2) {
+			if ("off".equals(a[2])) {
+				stats.dumpTo(null, 0);
+				System.out.println("stats dump off");
+			} else {
+				long secs;
+				try {
+					secs = a.length > 3 ? Long.parseLong(a[3]) : 10;
+				} catch (NumberFormatException e) {
+					System.out.println("invalid stats interval: " + e.getMessage());
+					return;
+				}
+				stats.dumpTo(new File(a[2]), secs * 1000);
+				System.out.println("stats dump to " + a[2] + " every " + secs + "s");
+			}
+		} else {
+			System.out.println("invalid stats command");
+		}
+	}
+
+	// "", "<channel>", "panic [<out>]", or a VoiceTracker setting
+	private void notesCommand(String args) {
+		String[] a = args.split("\\s+");
+		try {
+			if (args.length() == 0) {
+				System.out.println(voices);
+			} else if (Character.isDigit(args.charAt(0))) {
+				int ch = Integer.parseInt(a[0]);
+				if (ch < 0 || ch >= VoiceTracker.CHANNELS)
+					System.out.println("invalid channel " + ch);
+				else
+					System.out.println(voices.show(ch));
+			} else if ("panic".equals(a[0])) {
+				int from = 0, to = txs.length;
+				if (a.length > 1) {
+					from = Integer.parseInt(a[1]);
+					to = from + 1;
+					if (from < 0 || from >= txs.length) {
+						System.out.println("invalid output " + from);
+						return;
+					}
+				}
+				for (int o = from; o < to; o++)
+					System.out.println("panic" + (txs.length > 1 ? " " + o : "") + ": " + voices.panic(txs[o]) + " note offs");
+			} else {
+				String err = voices.configure(args);
+				System.out.println(err != null ? err : voices.toString());
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("invalid notes value: " + e.getMessage());
+		}
 	}
 
-	public void send(MidiMessage msg, long ts) {
-		dumpMsg("RX: ", msg);
-		String txt = dec.decodeMsg(msg, verb);
-		if (txt!=null)
-			System.out.println(txt);
+	private void buildTrie() {
+		CommandTrie<String> t = new CommandTrie<String>();
+		Iterator<SysexModule> it = modules.modules().values().iterator();
+		while (it.hasNext()) {
+			SysexModule mod = it.next();
+			String[] cmds = mod.getCommands();
+			for (int i = 0; i < cmds.length; i++)
+				t.addSyntax(cmds[i], mod.getClass().getSimpleName());
+		}
+		cmdTrie = t;
 	}
 
-	private void dumpMsg(String pfx, MidiMessage msg) {
-		if (verb) {
-			StringBuffer sb = new StringBuffer(pfx);
-			for (int i = 0; i < msg.getLength(); i++) {
-				int v = ((int) msg.getMessage()[i]) & 0xff;
-				if (v < 16)
-					sb.append('0');
-				sb.append(Integer.toHexString(v));
-				sb.append(' ');
+	// Identity request on every output
+	private void sendID() {
+		for (int o = 0; o < txs.length; o++)
+			txs[o].send(PooledSysex.obtain(6).put(0xf0).put(0x7e).put(0x7f).put(0x06).put(0x01).put(0xf7), -1);
+	}
+
+	/* RxMerge.Sink interface, runs on the consumer thread */
+
+	public void receive(int port, byte[] b, int n, long ts, long arrivalNs) {
+		long taken = System.nanoTime();
+		SmfRecorder r = rec;
+		if (r != null) {
+			try {
+				r.record(b, n, ts);
+			} catch (IOException e) {
+				System.err.println("Recording failed: " + e);
+				rec = null;
+				// patch in what was written so far
+				try {
+					r.close();
+				} catch (IOException e2) {
+				}
 			}
-			System.out.println(sb.toString());
 		}
+		router.route(port, b, n, ts);
+		if (!pipe.accept(b, 0, n, ts))
+			return;
+		DecodedMsg ev = pipe.decode(port, b, 0, n, ts);
+		if (ev == null)
+			return;
+		long decoded = System.nanoTime();
+		pipe.sink(ev);
+		stats.record(ev, arrivalNs, taken, decoded, System.nanoTime());
+	}
+
+	private void dumpMsg(String pfx, MidiMessage msg) {
+		if (verb)
+			dumpMsg(pfx, msg instanceof PooledSysex ? ((PooledSysex) msg).array() : msg.getMessage(), 0, msg.getLength());
+	}
+
+	private void dumpMsg(String pfx, byte[] b, int o, int n) {
+		if (verb)
+			out.dump(pfx, b, o, n);
 	}
 }
@@ -0,0 +1,256 @@
+package com.ashbysoft;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * SysexModule instances by input port, manufacturer and device ID. Module
+ * classes are found with ServiceLoader and instantiated before any MIDI
+ * arrives. Every input port gets its own instance of each module; the
+ * first device to identify itself on a port takes that instance over,
+ * later devices with other IDs on the same port get new instances.
+ * Sysex from a device that has not identified itself goes to the port's
+ * first instance. Lookups are plain array indexing.
+ */
+public class ModuleTable implements SysexLoader {
+
+	// per port instance for devices without one of their own
+	private static final int ANY = 128;
+
+	public static class Entry {
+		public final SysexModule mod;
+		public final int port;
+		private volatile int dev = -1;
+
+		Entry(SysexModule mod, int port) {
+			this.mod = mod;
+			this.port = port;
+		}
+
+		// Device ID this instance is bound to, -1 if none yet
+		public int getDevice() {
+			return dev;
+		}
+
+		// Selected by "@<port>" / "@<port>:<dev>" (dev -1)?
+		public boolean matches(int p, int d) {
+			return p == port && (d < 0 || d == dev);
+		}
+
+		public String getName() {
+			return mod.getClass().getSimpleName() + "[" + port + (dev >= 0 ? ":" + dev : "") + "]";
+		}
+	}
+
+	// one instance of each module class, by class name and Manufacturers.index()
+	private ConcurrentHashMap<String, SysexModule> protos = new ConcurrentHashMap<String, SysexModule>();
+	private volatile SysexModule[] byId = new SysexModule[Manufacturers.INDEXES];
+
+	// [port][Manufacturers.index()] -> instances by device ID, and ANY
+	private volatile SysexModule[][][] inst = new SysexModule[0][][];
+	private CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+
+	// handed to every instance
+	private ClockTracker clock = null;
+	private DumpWriter out = null;
+
+	/*
+	 * Instantiate every SysexModule listed in META-INF/services, so the
+	 * receive path never loads classes. Providers are created concurrently
+	 * with -Dmidifun.parallel=true.
+	 */
+	public void discover() {
+		List<ServiceLoader.Provider<SysexModule>> ps = new ArrayList<ServiceLoader.Provider<SysexModule>>();
+		try {
+			Iterator<ServiceLoader.Provider<SysexModule>> it = ServiceLoader.load(SysexModule.class).stream().iterator();
+			while (it.hasNext())
+				ps.add(it.next());
+		} catch (ServiceConfigurationError e) {
+			System.err.println("Unable to list sysex modules: " + e);
+		}
+		if (Boolean.getBoolean("midifun.parallel") && ps.size() > 1) {
+			ExecutorService ex = Executors.newFixedThreadPool(Math.min(ps.size(), Runtime.getRuntime().availableProcessors()));
+			List<Future<SysexModule>> fs = new ArrayList<Future<SysexModule>>();
+			for (final ServiceLoader.Provider<SysexModule> p : ps) {
+				fs.add(ex.submit(new Callable<SysexModule>() {
+					public SysexModule call() {
+						return p.get();
+					}
+				}));
+			}
+			for (int i = 0; i < fs.size(); i++) {
+				try {
+					register(ps.get(i).type().getSimpleName(), fs.get(i).get());
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} catch (ExecutionException e) {
+					System.err.println("Unable to create " + ps.get(i).type().getName() + ": " + e.getCause());
+				}
+			}
+			ex.shutdown();
+		} else {
+			for (ServiceLoader.Provider<SysexModule> p : ps) {
+				try {
+					register(p.type().getSimpleName(), p.get());
+				} catch (ServiceConfigurationError e) {
+					System.err.println("Unable to create " + p.type().getName() + ": " + e);
+				}
+			}
+		}
+	}
+
+	private synchronized void register(String name, SysexModule mod) {
+		protos.put(name, mod);
+		SysexModule[] a = byId.clone();
+		int[] ids = mod.getManufacturers();
+		for (int i = 0; i < ids.length; i++) {
+			int x = Manufacturers.index(ids[i]);
+			if (x < 0)
+				System.err.println(name + ": unknown manufacturer ID " + Integer.toHexString(ids[i]));
+			else
+				a[x] = mod;
+		}
+		byId = a;
+		for (int p = 0; p < inst.length; p++)
+			addInstance(p, p == 0 ? mod : create(mod));
+	}
+
+	// Set up instances of every module for nports input ports
+	public synchronized void open(int nports) {
+		inst = new SysexModule[nports][Manufacturers.INDEXES][];
+		entries.clear();
+		for (SysexModule mod : protos.values()) {
+			for (int p = 0; p < nports; p++)
+				addInstance(p, p == 0 ? mod : create(mod));
+		}
+	}
+
+	private SysexModule create(SysexModule proto) {
+		try {
+			return proto.getClass().getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Unable to create " + proto.getClass().getName() + ": " + e);
+			return null;
+		}
+	}
+
+	private Entry addInstance(int port, SysexModule mod) {
+		if (mod == null)
+			return null;
+		mod.setClock(clock);
+		mod.setOutput(out);
+		Entry e = new Entry(mod, port);
+		entries.add(e);
+		int[] ids = mod.getManufacturers();
+		for (int i = 0; i < ids.length; i++) {
+			int x = Manufacturers.index(ids[i]);
+			if (x < 0)
+				continue;
+			if (inst[port][x] == null)
+				inst[port][x] = new SysexModule[ANY + 1];
+			if (inst[port][x][ANY] == null)
+				inst[port][x][ANY] = mod;
+		}
+		return e;
+	}
+
+	private Entry entry(SysexModule mod) {
+		for (Entry e : entries) {
+			if (e.mod == mod)
+				return e;
+		}
+		return null;
+	}
+
+	private SysexModule[] devices(int port, int mfId) {
+		int x = Manufacturers.index(mfId);
+		SysexModule[][][] a = inst;
+		if (x < 0 || port < 0 || port >= a.length)
+			return null;
+		return a[port][x];
+	}
+
+	public synchronized void setClock(ClockTracker clock) {
+		this.clock = clock;
+		for (SysexModule mod : protos.values())
+			mod.setClock(clock);
+		for (Entry e : entries)
+			e.mod.setClock(clock);
+	}
+
+	public synchronized void setOutput(DumpWriter out) {
+		this.out = out;
+		for (SysexModule mod : protos.values())
+			mod.setOutput(out);
+		for (Entry e : entries)
+			e.mod.setOutput(out);
+	}
+
+	/* SysexLoader interface */
+
+	public synchronized SysexModule loadModule(String id) {
+		SysexModule mod = protos.get(id);
+		if (mod == null) {
+			try {
+				mod = (SysexModule) Class.forName("com.ashbysoft." + id).getDeclaredConstructor().newInstance();
+				register(id, mod);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		return mod;
+	}
+
+	public SysexModule module(int port, int mfId, int dev) {
+		SysexModule[] d = devices(port, mfId);
+		if (d == null) {
+			// no ports opened (yet): the module itself
+			int x = Manufacturers.index(mfId);
+			return x < 0 || inst.length > 0 ? null : byId[x];
+		}
+		SysexModule m = dev >= 0 && dev < ANY ? d[dev] : null;
+		return m != null ? m : d[ANY];
+	}
+
+	public synchronized SysexModule identify(int port, int mfId, int dev) {
+		SysexModule[] d = devices(port, mfId);
+		if (d == null || dev < 0 || dev >= ANY || d[dev] != null)
+			return module(port, mfId, dev);
+		SysexModule m = d[ANY];
+		Entry e = entry(m);
+		if (e == null)
+			return m;
+		if (e.dev >= 0) {
+			// the port's instance already belongs to another device
+			e = addInstance(port, create(m));
+			if (e == null)
+				return m;
+			m = e.mod;
+		}
+		m.setDevice(dev);
+		e.dev = dev;
+		d[dev] = m;
+		return m;
+	}
+
+	/* Commands */
+
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	// One instance of each module class, by name
+	public ConcurrentHashMap<String, SysexModule> modules() {
+		return protos;
+	}
+}
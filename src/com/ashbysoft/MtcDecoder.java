@@ -0,0 +1,212 @@
+package com.ashbysoft;
+
+/*
+ * MIDI Time Code assembler and timing analyser. Runs as a pipeline filter
+ * (ahead of the display filter, everything is passed on) and sees every
+ * quarter frame (0xF1) and full frame (F0 7F <dev> 01 01 hr mn sc fr F7)
+ * message with its receive timestamp.
+ *
+ * Quarter frames are collected into hh:mm:ss:ff once all eight pieces of
+ * a sequence have arrived (plus two frames when running forwards, as the
+ * sequence takes two frames to send). A piece out of sequence, or a gap
+ * of more than four quarter frame periods, is a dropout; a sequence
+ * running the other way is a direction change. The
+ * quarter frame interval is compared against nominal for the frame rate
+ * (jitter), and the timecode position against the receive clock (drift,
+ * in ppm, since the last locate/dropout). Nothing is allocated per
+ * message. Written by the consumer thread only, toString() may see
+ * slightly stale values.
+ */
+public class MtcDecoder implements Pipeline.Filter {
+
+	static final String[] rateNames = { "24", "25", "29.97df", "30" };
+	private static final int[] fps = { 24, 25, 30, 30 };
+	private static final double[] realFps = { 24, 25, 30000 / 1001.0, 30 };
+	private static final int DROP_FRAME = 2;
+
+	// quarter frame assembly
+	private final int[] piece = new int[8];
+	private int last = -1;
+	private int seen = 0;
+	private int dir = 0;
+	private long lastUs = -1;
+
+	// current position, in frames since 00:00:00:00 (drop-frame labels skipped, see frames())
+	private long frame = -1;
+	private int rate = 3;
+	// no continuity check for the next assembled time (after a dropout or locate)
+	private boolean resync = true;
+
+	// counters
+	private long qf = 0, full = 0, frames = 0, dropouts = 0, reversals = 0, jumps = 0;
+
+	// quarter frame interval: |interval - nominal| histogram, running mean/variance (Welford)
+	private Histogram jitter = new Histogram();
+	private long nInt = 0;
+	private double mean = 0, m2 = 0;
+
+	// drift baseline: receive time and timecode time (us) at the start of a continuous run
+	private long baseRx = -1;
+	private double baseTc = 0;
+	private double drift = 0;
+
+	public boolean accept(byte[] b, int o, int n, long ts) {
+		int st = ((int) b[o]) & 0xff;
+		if (0xf1 == st && n > 1) {
+			quarterFrame(b[o + 1], ts >= 0 ? ts : System.nanoTime() / 1000);
+		} else if (0xf0 == st && n >= 10 && 0x7f == b[o + 1] && 0x01 == b[o + 3] && 0x01 == b[o + 4]) {
+			fullFrame(b[o + 5], b[o + 6], b[o + 7], b[o + 8]);
+		}
+		return true;
+	}
+
+	private void quarterFrame(int d, long us) {
+		int p = (d >> 4) & 7;
+		qf++;
+		if (last >= 0) {
+			int step = (p - last) & 7;
+			int nd = 1 == step ? 1 : 7 == step ? -1 : 0;
+			long dt = us - lastUs;
+			double nominal = 1e6 / (realFps[rate] * 4);
+			if (0 == nd || dt > 4 * nominal) {
+				lost();
+			} else {
+				if (dir != 0 && nd != dir) {
+					reversals++;
+					seen = 0;
+					baseRx = -1;
+				} else if (frame >= 0) {
+					interval(dt, nominal);
+				}
+				dir = nd;
+			}
+		}
+		last = p;
+		lastUs = us;
+		piece[p] = d & 0xf;
+		seen |= 1 << p;
+		if (0xff == seen && ((dir > 0 && 7 == p) || (dir < 0 && 0 == p))) {
+			seen = 0;
+			assemble(us);
+		}
+	}
+
+	private void lost() {
+		dropouts++;
+		seen = 0;
+		dir = 0;
+		baseRx = -1;
+		resync = true;
+	}
+
+	private void interval(long dt, double nominal) {
+		jitter.record((long) Math.abs(dt - nominal));
+		nInt++;
+		double delta = dt - mean;
+		mean += delta / nInt;
+		m2 += delta * (dt - mean);
+	}
+
+	private void assemble(long us) {
+		int r = (piece[7] >> 1) & 3;
+		long f = frames(piece[6] | (piece[7] & 1) << 4, piece[4] | piece[5] << 4, piece[2] | piece[3] << 4,
+			piece[0] | piece[1] << 4, r);
+		// the sequence took two frames to send
+		if (dir > 0)
+			f += 2;
+		// a running sequence moves on 2 frames each time
+		if (!resync && r == rate && f != frame + 2 * dir) {
+			jumps++;
+			baseRx = -1;
+		}
+		rate = r;
+		frame = f;
+		resync = false;
+		frames++;
+		double tc = frame * 1e6 / realFps[rate];
+		if (baseRx < 0) {
+			baseRx = us;
+			baseTc = tc;
+		} else if (us > baseRx) {
+			drift = ((us - baseRx) - dir * (tc - baseTc)) * 1e6 / (us - baseRx);
+		}
+	}
+
+	private void fullFrame(int hr, int mn, int sc, int fr) {
+		full++;
+		rate = (hr >> 5) & 3;
+		frame = frames(hr & 0x1f, mn, sc, fr, rate);
+		last = -1;
+		seen = 0;
+		dir = 0;
+		baseRx = -1;
+		resync = true;
+	}
+
+	/*
+	 * Frames since 00:00:00:00. At 29.97df frame labels 00 and 01 are
+	 * skipped at the start of every minute except each tenth, so those
+	 * are taken out: the count then runs at the real frame rate.
+	 */
+	private static long frames(int h, int m, int s, int f, int r) {
+		long mins = h * 60L + m;
+		long n = (mins * 60 + s) * fps[r] + f;
+		return DROP_FRAME == r ? n - 2 * (mins - mins / 10) : n;
+	}
+
+	// Frame count back to labels at the nominal rate (skipped labels put back)
+	private static long labels(long f, int r) {
+		if (DROP_FRAME != r)
+			return f;
+		// 17982 frames per 10 minutes, 1798 per minute after the first
+		long tens = f / 17982, rest = f % 17982;
+		return f + 18 * tens + (rest > 1 ? 2 * ((rest - 2) / 1798) : 0);
+	}
+
+	// hh:mm:ss:ff
+	static StringBuffer appendTime(StringBuffer sb, int h, int m, int s, int f) {
+		two(sb, h).append(':');
+		two(sb, m).append(':');
+		two(sb, s).append(':');
+		return two(sb, f);
+	}
+
+	private static StringBuffer two(StringBuffer sb, int v) {
+		return sb.append((char) ('0' + v / 10 % 10)).append((char) ('0' + v % 10));
+	}
+
+	public void reset() {
+		last = -1;
+		seen = 0;
+		dir = 0;
+		frame = -1;
+		resync = true;
+		qf = full = frames = dropouts = reversals = jumps = 0;
+		jitter.reset();
+		nInt = 0;
+		mean = m2 = drift = 0;
+		baseRx = -1;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("mtc: ");
+		long f = frame;
+		if (f < 0) {
+			sb.append("--:--:--:--");
+		} else {
+			int r = rate;
+			f = labels(f, r);
+			appendTime(sb, (int) (f / fps[r] / 3600), (int) (f / fps[r] / 60 % 60), (int) (f / fps[r] % 60), (int) (f % fps[r]));
+			sb.append(' ').append(rateNames[r]).append("fps ").append(dir > 0 ? "forward" : dir < 0 ? "reverse" : "stopped");
+		}
+		sb.append("; qf ").append(qf).append(" full ").append(full).append(" frames ").append(frames);
+		sb.append(" dropouts ").append(dropouts).append(" reversals ").append(reversals).append(" jumps ").append(jumps);
+		if (nInt > 1) {
+			sb.append("\n  qf interval us: mean ").append(Math.round(mean * 10) / 10.0);
+			sb.append(" sd ").append(Math.round(Math.sqrt(m2 / (nInt - 1)) * 10) / 10.0);
+			sb.append("\n  jitter us: ").append(jitter.summary(1));
+			sb.append("\n  drift: ").append(Math.round(drift * 10) / 10.0).append("ppm");
+		}
+		return sb.toString();
+	}
+}
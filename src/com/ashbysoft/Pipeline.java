@@ -0,0 +1,134 @@
+package com.ashbysoft;
+
+import java.util.Arrays;
+
+/*
+ * Receive processing as a chain of stages:
+ *   filter    - raw bytes and receive timestamp, before anything is
+ *               decoded (cheap bitmask tests, clock/timecode analysis)
+ *   decode    - MidiDecoder.decode() into a re-used DecodedMsg
+ *   transform - may modify the decoded message, or drop it
+ *   sink      - consumers (module dispatch, output, ..)
+ * A message rejected by a filter costs nothing beyond that test. Stages
+ * are kept in arrays that are replaced (not modified) when the chain is
+ * changed, so the consumer thread iterates without locks or allocation.
+ */
+public class Pipeline {
+
+	public interface Filter {
+		// false to drop the message b[o..o+n), ts is the receive timestamp (us, -1 if unknown)
+		public boolean accept(byte[] b, int o, int n, long ts);
+	}
+
+	public interface Transform {
+		// false to drop the message
+		public boolean transform(DecodedMsg ev);
+	}
+
+	public interface Sink {
+		public void receive(DecodedMsg ev);
+	}
+
+	private MidiDecoder dec;
+	private DecodedMsg ev = new DecodedMsg();
+
+	private volatile Filter[] filters = new Filter[0];
+	private volatile Transform[] transforms = new Transform[0];
+	private volatile Sink[] sinks = new Sink[0];
+
+	// only touched by the consumer thread
+	private long passed = 0, filtered = 0, dropped = 0;
+
+	public Pipeline(MidiDecoder dec) {
+		this.dec = dec;
+	}
+
+	/* Chain set up, any thread */
+
+	public synchronized Pipeline addFilter(Filter f) {
+		filters = append(filters, f);
+		return this;
+	}
+
+	public synchronized Pipeline addTransform(Transform t) {
+		transforms = append(transforms, t);
+		return this;
+	}
+
+	public synchronized Pipeline addSink(Sink s) {
+		sinks = append(sinks, s);
+		return this;
+	}
+
+	public synchronized void remove(Object stage) {
+		filters = without(filters, stage);
+		transforms = without(transforms, stage);
+		sinks = without(sinks, stage);
+	}
+
+	private static <T> T[] append(T[] a, T o) {
+		T[] r = Arrays.copyOf(a, a.length + 1);
+		r[a.length] = o;
+		return r;
+	}
+
+	private static <T> T[] without(T[] a, Object o) {
+		T[] r = Arrays.copyOf(a, a.length);
+		int n = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != o)
+				r[n++] = a[i];
+		}
+		return n == a.length ? a : Arrays.copyOf(r, n);
+	}
+
+	/* Processing, consumer thread only */
+
+	// Run the filters on raw bytes, false if any of them drops the message
+	public boolean accept(byte[] b, int o, int n, long ts) {
+		Filter[] fs = filters;
+		for (int i = 0; i < fs.length; i++) {
+			if (!fs[i].accept(b, o, n, ts)) {
+				filtered++;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Decode and transform, null if a transform dropped the message
+	public DecodedMsg decode(int port, byte[] b, int o, int n, long ts) {
+		dec.decode(b, o, n, ts, ev);
+		ev.port = port;
+		Transform[] xs = transforms;
+		for (int i = 0; i < xs.length; i++) {
+			if (!xs[i].transform(ev)) {
+				dropped++;
+				return null;
+			}
+		}
+		return ev;
+	}
+
+	public void sink(DecodedMsg ev) {
+		Sink[] ss = sinks;
+		for (int i = 0; i < ss.length; i++)
+			ss[i].receive(ev);
+		passed++;
+	}
+
+	// All stages in one go, returns the message that reached the sinks (or null)
+	public DecodedMsg process(int port, byte[] b, int o, int n, long ts) {
+		if (!accept(b, o, n, ts))
+			return null;
+		DecodedMsg ev = decode(port, b, o, n, ts);
+		if (ev != null)
+			sink(ev);
+		return ev;
+	}
+
+	public String toString() {
+		return "pipeline: " + filters.length + " filters, " + transforms.length + " transforms, " + sinks.length +
+			" sinks; passed " + passed + " filtered " + filtered + " dropped " + dropped;
+	}
+}
@@ -0,0 +1,83 @@
+package com.ashbysoft;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.sound.midi.SysexMessage;
+
+/*
+ * SysexMessage built in place: bytes are put() straight into the message's
+ * own buffer (no setMessage() copy), and messages are recycled through
+ * per-size pools. Whoever finally sends a message (TxScheduler) calls
+ * release(); a message must not be touched after that. Messages that are
+ * never released are simply garbage collected.
+ */
+public class PooledSysex extends SysexMessage {
+
+	private static final int MIN = 32;
+	private static final int CLASSES = 6;		// 32 .. 1024 bytes
+
+	@SuppressWarnings("unchecked")
+	private static final ConcurrentLinkedQueue<PooledSysex>[] pools = (ConcurrentLinkedQueue<PooledSysex>[]) new ConcurrentLinkedQueue<?>[CLASSES];
+	static {
+		for (int i = 0; i < CLASSES; i++)
+			pools[i] = new ConcurrentLinkedQueue<PooledSysex>();
+	}
+
+	private static long created = 0;
+
+	private final int cls;
+	private volatile boolean free = false;
+
+	private PooledSysex(int cls, int cap) {
+		super(new byte[cap]);
+		this.cls = cls;
+		length = 0;
+	}
+
+	private static int sizeClass(int cap) {
+		int c = 0;
+		while (c < CLASSES && (MIN << c) < cap)
+			c++;
+		return c;
+	}
+
+	// An empty message with room for at least cap bytes (F0 and F7 included)
+	public static PooledSysex obtain(int cap) {
+		int c = sizeClass(cap);
+		PooledSysex m = c < CLASSES ? pools[c].poll() : null;
+		if (m == null) {
+			created++;
+			return new PooledSysex(c, c < CLASSES ? MIN << c : cap);
+		}
+		m.free = false;
+		m.length = 0;
+		return m;
+	}
+
+	public void release() {
+		if (cls < CLASSES && !free) {
+			free = true;
+			pools[cls].offer(this);
+		}
+	}
+
+	public PooledSysex put(int b) {
+		data[length++] = (byte) b;
+		return this;
+	}
+
+	public PooledSysex put(byte[] b, int o, int n) {
+		System.arraycopy(b, o, data, length, n);
+		length += n;
+		return this;
+	}
+
+	// Direct access to the message bytes, valid up to getLength()
+	byte[] array() {
+		return data;
+	}
+
+	static long getCreated() {
+		return created;
+	}
+}
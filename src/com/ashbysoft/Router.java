@@ -0,0 +1,161 @@
+package com.ashbysoft;
+
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/*
+ * Fan-out of received messages to output ports. Each route matches input
+ * ports (bitmask) and a MaskFilter (type, channel, manufacturer) on the
+ * raw bytes, and copies what matches to one output; a message can take
+ * any number of routes. Runs on the RX consumer thread ahead of the
+ * display filter, so clock etc. are forwarded even when not shown. The
+ * table is an array replaced on change; route counters are written by
+ * the consumer thread only.
+ */
+public class Router {
+
+	public static class Route {
+		final int ins;
+		final MaskFilter filter;
+		final int out;
+		final String spec;
+		long count = 0, bytes = 0;
+
+		Route(int ins, MaskFilter filter, int out, String spec) {
+			this.ins = ins;
+			this.filter = filter;
+			this.out = out;
+			this.spec = spec;
+		}
+
+		public String toString() {
+			return spec + ": " + count + " msgs, " + bytes + " bytes";
+		}
+	}
+
+	private final Receiver[] outs;
+	// open input ports, at most 32 (the route bitmask)
+	private final int nins;
+	private volatile Route[] routes = new Route[0];
+	private long errors = 0;
+
+	public Router(Receiver[] outs, int nins) {
+		this.outs = outs;
+		this.nins = Math.min(32, nins);
+	}
+
+	/* Consumer thread */
+
+	public void route(int port, byte[] b, int n, long ts) {
+		Route[] rs = routes;
+		for (int i = 0; i < rs.length; i++) {
+			Route r = rs[i];
+			if ((r.ins & 1 << port) != 0 && r.filter.accept(b, 0, n, ts)) {
+				MidiMessage m = copy(b, n);
+				if (m != null) {
+					outs[r.out].send(m, -1);
+					r.count++;
+					r.bytes += n;
+				}
+			}
+		}
+	}
+
+	// A message of our own for each output (they are queued, and pooled sysex is released once sent)
+	private MidiMessage copy(byte[] b, int n) {
+		int st = ((int) b[0]) & 0xff;
+		if (0xf0 == st || (0xf7 == st && n > 1))
+			return PooledSysex.obtain(n).put(b, 0, n);
+		try {
+			ShortMessage sm = new ShortMessage();
+			sm.setMessage(st, n > 1 ? b[1] & 0x7f : 0, n > 2 ? b[2] & 0x7f : 0);
+			return sm;
+		} catch (InvalidMidiDataException e) {
+			errors++;
+			return null;
+		}
+	}
+
+	/* Table changes, command thread */
+
+	/*
+	 * "add <in>[,<in>..]|* <out> [<type>[,..]|* [<channel>[,..]|* [<mf id>[,..]|*]]]"
+	 * (types and IDs as for MaskFilter), "del <n>", "clear", "reset";
+	 * returns an error message or null.
+	 */
+	public synchronized String configure(String args) {
+		String[] a = args.trim().split("\\s+");
+		try {
+			if ("add".equals(a[0]) && a.length > 2) {
+				int ins = 0;
+				if ("*".equals(a[1])) {
+					ins = -1;
+				} else {
+					String[] ps = a[1].split(",");
+					for (int i = 0; i < ps.length; i++) {
+						int p = Integer.parseInt(ps[i]);
+						if (p < 0 || p >= nins)
+							return "invalid route: no input port " + p;
+						ins |= 1 << p;
+					}
+				}
+				int out = Integer.parseInt(a[2]);
+				if (out < 0 || out >= outs.length)
+					return "no output port " + out;
+				MaskFilter f = new MaskFilter();
+				f.configure("pass all");
+				String err = null;
+				if (a.length > 3 && !"*".equals(a[3])) {
+					f.configure("drop all");
+					err = f.configure("pass " + a[3]);
+				}
+				if (err == null && a.length > 4 && !"*".equals(a[4]))
+					err = f.configure("ch " + a[4]);
+				if (err == null && a.length > 5 && !"*".equals(a[5]))
+					err = f.configure("mf " + a[5]);
+				if (err != null)
+					return err;
+				StringBuffer spec = new StringBuffer();
+				for (int i = 1; i < a.length; i++)
+					spec.append(i > 1 ? " " : "").append(a[i]);
+				Route[] rs = Arrays.copyOf(routes, routes.length + 1);
+				rs[routes.length] = new Route(ins, f, out, spec.toString());
+				routes = rs;
+			} else if ("del".equals(a[0]) && a.length > 1) {
+				int d = Integer.parseInt(a[1]);
+				if (d < 0 || d >= routes.length)
+					return "no route " + d;
+				Route[] rs = new Route[routes.length - 1];
+				System.arraycopy(routes, 0, rs, 0, d);
+				System.arraycopy(routes, d + 1, rs, d, rs.length - d);
+				routes = rs;
+			} else if ("clear".equals(a[0])) {
+				routes = new Route[0];
+			} else if ("reset".equals(a[0])) {
+				Route[] rs = routes;
+				for (int i = 0; i < rs.length; i++)
+					rs[i].count = rs[i].bytes = 0;
+			} else {
+				return "invalid route command";
+			}
+		} catch (NumberFormatException e) {
+			return "invalid route value: " + e.getMessage();
+		}
+		return null;
+	}
+
+	public String toString() {
+		Route[] rs = routes;
+		StringBuffer sb = new StringBuffer();
+		sb.append("routes: ").append(rs.length).append(" (<in> <out> [<types> [<channels> [<mf ids>]]])");
+		if (errors > 0)
+			sb.append(", ").append(errors).append(" bad messages");
+		for (int i = 0; i < rs.length; i++)
+			sb.append("\n ").append(i).append(": ").append(rs[i]);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,149 @@
+package com.ashbysoft;
+
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/*
+ * Fan-in of several input ports. Each port has its own RxRing, written
+ * only by that port's driver thread, and one consumer thread merges them
+ * oldest first. Driver timestamps come from each device's own clock, so
+ * the merge is by arrival time (System.nanoTime() in RxRing.offer()).
+ */
+public class RxMerge implements Runnable {
+
+	public interface Sink {
+		public void receive(int port, byte[] b, int n, long ts, long arrivalNs);
+	}
+
+	// RxRing.Sink for one port, tags messages with the port number
+	class Port implements RxRing.Sink, Receiver {
+		final int port;
+		final RxRing ring;
+
+		Port(int port, int size, int slotSize) {
+			this.port = port;
+			ring = new RxRing(size, slotSize, this);
+		}
+
+		public void receive(byte[] b, int n, long ts, long arrivalNs) {
+			sink.receive(port, b, n, ts, arrivalNs);
+		}
+
+		/* Receiver interface, driver thread */
+
+		public void send(MidiMessage msg, long ts) {
+			ring.offer(msg, ts);
+		}
+
+		public void close() {
+		}
+	}
+
+	private final Port[] ports;
+	private final Sink sink;
+	private volatile Thread consumer = null;
+	private volatile boolean running = false;
+
+	public RxMerge(int nports, int size, int slotSize, Sink sink) {
+		this.sink = sink;
+		ports = new Port[nports];
+		for (int p = 0; p < nports; p++)
+			ports[p] = new Port(p, size, slotSize);
+	}
+
+	public int getPorts() {
+		return ports.length;
+	}
+
+	// The Receiver to hand to input port p's Transmitter
+	public Receiver receiver(int p) {
+		return ports[p];
+	}
+
+	public RxRing ring(int p) {
+		return ports[p].ring;
+	}
+
+	// Deliver the oldest message over all ports, false if all are empty
+	private boolean takeOldest() {
+		int best = -1;
+		long min = Long.MAX_VALUE;
+		for (int p = 0; p < ports.length; p++) {
+			long a = ports[p].ring.peekArrival();
+			if (a < min) {
+				min = a;
+				best = p;
+			}
+		}
+		return best >= 0 && ports[best].ring.take();
+	}
+
+	private boolean allEmpty() {
+		for (int p = 0; p < ports.length; p++) {
+			if (!ports[p].ring.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	private void setWaiting(boolean w) {
+		for (int p = 0; p < ports.length; p++)
+			ports[p].ring.setWaiting(w);
+	}
+
+	public void run() {
+		while (running) {
+			if (!takeOldest()) {
+				setWaiting(true);
+				if (allEmpty())
+					LockSupport.parkNanos(1000000);
+				setWaiting(false);
+			}
+		}
+		while (takeOldest())
+			;
+	}
+
+	public void start() {
+		running = true;
+		Thread t = new Thread(this, "MidiFun-rx");
+		t.setDaemon(true);
+		for (int p = 0; p < ports.length; p++)
+			ports[p].ring.attach(t);
+		consumer = t;
+		t.start();
+	}
+
+	public void stop() {
+		Thread t = consumer;
+		running = false;
+		if (t != null) {
+			LockSupport.unpark(t);
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	public long getDropped() {
+		long d = 0;
+		for (int p = 0; p < ports.length; p++)
+			d += ports[p].ring.getDropped();
+		return d;
+	}
+
+	public String toString() {
+		if (ports.length == 1)
+			return ports[0].ring.toString();
+		StringBuffer sb = new StringBuffer();
+		for (int p = 0; p < ports.length; p++) {
+			if (p > 0)
+				sb.append('\n');
+			sb.append(p).append(' ').append(ports[p].ring);
+		}
+		return sb.toString();
+	}
+}
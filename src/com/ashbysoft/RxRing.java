@@ -0,0 +1,209 @@
+package com.ashbysoft;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/*
+ * Single producer/single consumer ring buffer of raw MIDI messages. The
+ * driver callback thread calls offer(), which only copies bytes into a
+ * preallocated slot (with the arrival nanoTime), a separate consumer
+ * thread hands each message to a Sink for decoding/output. When the ring
+ * is full new messages are dropped (and counted) rather than blocking
+ * the driver. Several rings can share one consumer thread (RxMerge),
+ * which uses peekArrival()/take() instead of start()/drain().
+ */
+public class RxRing implements Runnable {
+
+	public interface Sink {
+		public void receive(byte[] b, int n, long ts, long arrivalNs);
+	}
+
+	private final int mask;
+	private final long[] stamps;
+	private final long[] arrivals;
+	private final int[] lens;
+	private final byte[][] slots;
+
+	// next slot to write (producer) / read (consumer)
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	// counters, each written by one thread only
+	private volatile long dropped = 0;
+	private volatile long grown = 0;
+	private volatile long maxDepth = 0;
+
+	private final Sink sink;
+	private volatile Thread consumer = null;
+	private volatile boolean waiting = false;
+	private volatile boolean running = false;
+
+	public RxRing(int size, int slotSize, Sink sink) {
+		int n = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		mask = n - 1;
+		stamps = new long[n];
+		arrivals = new long[n];
+		lens = new int[n];
+		slots = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			slots[i] = new byte[slotSize];
+		}
+		this.sink = sink;
+	}
+
+	/* Producer side */
+
+	public boolean offer(MidiMessage msg, long ts) {
+		long h = head.get();
+		long depth = h - tail.get();
+		if (depth > mask) {
+			dropped++;
+			return false;
+		}
+		if (depth >= maxDepth)
+			maxDepth = depth + 1;
+		int i = (int) h & mask;
+		int n = msg.getLength();
+		if (msg instanceof ShortMessage) {
+			// no getMessage() copy for short messages
+			ShortMessage sm = (ShortMessage) msg;
+			byte[] s = slots[i];
+			s[0] = (byte) sm.getStatus();
+			if (n > 1)
+				s[1] = (byte) sm.getData1();
+			if (n > 2)
+				s[2] = (byte) sm.getData2();
+		} else {
+			byte[] b = msg.getMessage();
+			if (b.length > slots[i].length) {
+				// rare: only grows to the largest sysex seen in this slot
+				slots[i] = new byte[Integer.highestOneBit(b.length) << 1];
+				grown++;
+			}
+			System.arraycopy(b, 0, slots[i], 0, n);
+		}
+		lens[i] = n;
+		stamps[i] = ts;
+		arrivals[i] = System.nanoTime();
+		// volatile set, not lazySet: the read of waiting must not move ahead of
+		// the publish, or a consumer that just parked would sleep out its timeout
+		head.set(h + 1);
+		if (waiting)
+			LockSupport.unpark(consumer);
+		return true;
+	}
+
+	/* Consumer side */
+
+	public int drain() {
+		int cnt = 0;
+		long t = tail.get();
+		while (t < head.get()) {
+			int i = (int) t & mask;
+			sink.receive(slots[i], lens[i], stamps[i], arrivals[i]);
+			tail.lazySet(++t);
+			cnt++;
+		}
+		return cnt;
+	}
+
+	/* External consumer side, for RxMerge */
+
+	// Arrival time of the oldest queued message, Long.MAX_VALUE if empty
+	long peekArrival() {
+		long t = tail.get();
+		if (t >= head.get())
+			return Long.MAX_VALUE;
+		return arrivals[(int) t & mask];
+	}
+
+	// Hand the oldest queued message to the sink, false if empty
+	boolean take() {
+		long t = tail.get();
+		if (t >= head.get())
+			return false;
+		int i = (int) t & mask;
+		sink.receive(slots[i], lens[i], stamps[i], arrivals[i]);
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	// The thread to unpark when a message arrives while it is waiting
+	void attach(Thread t) {
+		consumer = t;
+	}
+
+	void setWaiting(boolean w) {
+		waiting = w;
+	}
+
+	boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	public void run() {
+		while (running) {
+			if (drain() == 0) {
+				waiting = true;
+				if (tail.get() == head.get())
+					LockSupport.parkNanos(1000000);
+				waiting = false;
+			}
+		}
+		drain();
+	}
+
+	public void start() {
+		running = true;
+		Thread t = new Thread(this, "MidiFun-rx");
+		t.setDaemon(true);
+		consumer = t;
+		t.start();
+	}
+
+	public void stop() {
+		Thread t = consumer;
+		running = false;
+		if (t != null) {
+			LockSupport.unpark(t);
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/* Counters */
+
+	public long getReceived() {
+		return head.get();
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	public int getDepth() {
+		return (int) (head.get() - tail.get());
+	}
+
+	public long getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getGrown() {
+		return grown;
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	public String toString() {
+		return "rx: " + getReceived() + " dropped: " + dropped + " depth: " + getDepth() + "/" + getCapacity() +
+			" max: " + maxDepth + " grown: " + grown;
+	}
+}
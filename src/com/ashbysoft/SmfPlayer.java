@@ -0,0 +1,301 @@
+package com.ashbysoft;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/*
+ * Plays a Standard MIDI File to a Receiver. The file is memory mapped and
+ * events are parsed lazily from each track as the play head reaches them
+ * (tracks are merged by tick), so playback starts immediately however big
+ * the file is. The next event is always parsed before waiting for the
+ * current one. Waiting parks until SPIN_NS before the due time, then
+ * spins; the difference between due and actual send time is recorded.
+ */
+public class SmfPlayer implements Runnable {
+
+	private static final long SPIN_NS = 1000000;
+
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private Receiver rcv;
+
+	// per-track cursors
+	private int[] pos, end, runStat;
+	private long[] nextTick;
+
+	// timing: PPQ division or SMPTE ticks/second
+	private int ppq = 0;
+	private long ticksPerSec = 0;
+	private long tempo = 500000;
+	private long tempoTick = 0;
+	private long tempoUs = 0;
+
+	private volatile boolean running = false;
+	private Thread player = null;
+
+	// timing error statistics (ns)
+	private long sent = 0;
+	private long errMin = Long.MAX_VALUE, errMax = Long.MIN_VALUE, errSum = 0;
+
+	// current event, filled by next()
+	private int evTrk;
+	private long evTick;
+	private int evSt, evOff, evLen;
+
+	public SmfPlayer(File f, Receiver rcv) throws IOException {
+		this.rcv = rcv;
+		raf = new RandomAccessFile(f, "r");
+		map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		if (map.remaining() < 14 || map.getInt(0) != 0x4d546864)			// MThd
+			throw new IOException("Not a Standard MIDI File");
+		int hlen = map.getInt(4);
+		int ntrk = map.getShort(10) & 0xffff;
+		int div = map.getShort(12);
+		if (div < 0) {
+			// SMPTE: -fps in high byte, ticks/frame in low byte
+			ticksPerSec = (long) -(div >> 8) * (div & 0xff);
+		} else {
+			ppq = div;
+		}
+		if (hlen < 6 || hlen > map.limit() - 8 || (0 == ppq && ticksPerSec <= 0))
+			throw new IOException("Corrupt Standard MIDI File header");
+		pos = new int[ntrk];
+		end = new int[ntrk];
+		runStat = new int[ntrk];
+		nextTick = new long[ntrk];
+		// locate track chunks (only the 8 byte headers are touched)
+		int o = 8 + hlen;
+		int t = 0;
+		while (t < ntrk && o + 8 <= map.limit()) {
+			int id = map.getInt(o);
+			int len = map.getInt(o + 4);
+			if (len < 0)
+				break;
+			if (id == 0x4d54726b) {			// MTrk
+				pos[t] = o + 8;
+				end[t] = (int) Math.min(o + 8L + len, map.limit());
+				nextTick[t] = pos[t] < end[t] ? readVar(t) : Long.MAX_VALUE;
+				t++;
+			}
+			if (len > map.limit() - o - 8)
+				break;
+			o += 8 + len;
+		}
+		for (; t < ntrk; t++)
+			nextTick[t] = Long.MAX_VALUE;
+	}
+
+	private long readVar(int t) {
+		long v = 0;
+		int b;
+		do {
+			b = map.get(pos[t]++) & 0xff;
+			v = (v << 7) | (b & 0x7f);
+		} while ((b & 0x80) != 0 && pos[t] < end[t]);
+		return v;
+	}
+
+	// Length of a meta/sysex event, -1 if there is none or it is out of range
+	private int length(int t) {
+		if (pos[t] >= end[t])
+			return -1;
+		long v = readVar(t);
+		return v <= Integer.MAX_VALUE ? (int) v : -1;
+	}
+
+	// Parse the next event in tick order, false at end of file
+	private boolean next() {
+		while (true) {
+			int t = -1;
+			long min = Long.MAX_VALUE;
+			for (int i = 0; i < nextTick.length; i++) {
+				if (nextTick[i] < min) {
+					min = nextTick[i];
+					t = i;
+				}
+			}
+			if (t < 0)
+				return false;
+			evTrk = t;
+			evTick = min;
+			if (pos[t] >= end[t]) {
+				// delta time without an event
+				nextTick[t] = Long.MAX_VALUE;
+				continue;
+			}
+			int st = map.get(pos[t]) & 0xff;
+			if (st >= 0x80)
+				pos[t]++;
+			else
+				st = runStat[t];
+			evSt = st;
+			if (st < 0xf0) {
+				runStat[t] = st;
+				evOff = pos[t];
+				evLen = (st & 0xf0) == 0xc0 || (st & 0xf0) == 0xd0 ? 1 : 2;
+			} else if (0xff == st) {
+				int type = pos[t] < end[t] ? map.get(pos[t]++) & 0xff : 0x2f;
+				evLen = length(t);
+				evOff = pos[t];
+				evSt = 0xff00 | type;
+			} else {
+				// F0 sysex or F7 escape
+				evLen = length(t);
+				evOff = pos[t];
+			}
+			if (evLen < 0 || evLen > end[t] - evOff) {
+				// runs past the end of the track: truncated or corrupt, the track ends here
+				nextTick[t] = Long.MAX_VALUE;
+				continue;
+			}
+			if (0xff51 == evSt && evLen == 3) {
+				// tempo change: rebase time at this tick
+				tempoUs = tickToUs(evTick);
+				tempoTick = evTick;
+				tempo = ((map.get(evOff) & 0xff) << 16) | ((map.get(evOff + 1) & 0xff) << 8) | (map.get(evOff + 2) & 0xff);
+			}
+			pos[t] = evOff + evLen;
+			if (0xff2f == evSt || pos[t] >= end[t])
+				nextTick[t] = Long.MAX_VALUE;
+			else
+				nextTick[t] = evTick + readVar(t);
+			if (evSt < 0xff00)
+				return true;
+		}
+	}
+
+	private long tickToUs(long tick) {
+		if (ticksPerSec > 0)
+			return tick * 1000000 / ticksPerSec;
+		return tempoUs + (tick - tempoTick) * tempo / ppq;
+	}
+
+	private MidiMessage message() throws InvalidMidiDataException {
+		if (evSt < 0xf0) {
+			int d1 = map.get(evOff) & 0x7f;
+			int d2 = evLen > 1 ? map.get(evOff + 1) & 0x7f : 0;
+			return new ShortMessage(evSt, d1, d2);
+		}
+		byte[] b = new byte[evLen + 1];
+		b[0] = (byte) evSt;
+		map.get(evOff, b, 1, evLen);
+		if (0xf7 == evSt && evLen > 0 && (b[1] & 0xff) >= 0x80 && (b[1] & 0xff) != 0xf0) {
+			// escaped system common/realtime
+			ShortMessage sm = new ShortMessage();
+			sm.setMessage(b[1] & 0xff, evLen > 1 ? b[2] : 0, evLen > 2 ? b[3] : 0);
+			return sm;
+		}
+		SysexMessage sx = new SysexMessage();
+		sx.setMessage(b, b.length);
+		return sx;
+	}
+
+	public void run() {
+		try {
+			play();
+		} finally {
+			running = false;
+			close();
+		}
+	}
+
+	private void play() {
+		long start = System.nanoTime();
+		boolean more = next();
+		while (running && more) {
+			MidiMessage msg = null;
+			try {
+				msg = message();
+			} catch (InvalidMidiDataException e) {
+			}
+			long due = start + tickToUs(evTick) * 1000;
+			// prefetch: parse the following event while we wait
+			more = next();
+			long now;
+			while ((now = System.nanoTime()) < due - SPIN_NS && running)
+				LockSupport.parkNanos(due - now - SPIN_NS);
+			while ((now = System.nanoTime()) < due)
+				Thread.onSpinWait();
+			if (msg != null && running) {
+				rcv.send(msg, -1);
+				long err = System.nanoTime() - due;
+				synchronized (this) {
+					sent++;
+					errSum += err;
+					if (err < errMin)
+						errMin = err;
+					if (err > errMax)
+						errMax = err;
+				}
+			}
+		}
+	}
+
+	// Every event straight away, with its time in us, for offline analysis (port 0)
+	public void scan(RxMerge.Sink sink) {
+		byte[] b = new byte[256];
+		try {
+			while (next()) {
+				int n = evLen + 1;
+				if (n > b.length)
+					b = new byte[Integer.highestOneBit(n) << 1];
+				b[0] = (byte) evSt;
+				map.get(evOff, b, 1, evLen);
+				if (0xf7 == evSt && evLen > 0 && (b[1] & 0xff) >= 0x80 && (b[1] & 0xff) != 0xf0) {
+					// escaped system common/realtime
+					System.arraycopy(b, 1, b, 0, --n);
+				}
+				long us = tickToUs(evTick);
+				sink.receive(0, b, n, us, us * 1000);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	public void start() {
+		running = true;
+		player = new Thread(this, "MidiFun-play");
+		player.setPriority(Thread.MAX_PRIORITY);
+		player.setDaemon(true);
+		player.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (player != null) {
+			LockSupport.unpark(player);
+			try {
+				player.join(1000);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	public boolean isPlaying() {
+		return running;
+	}
+
+	private void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public synchronized String toString() {
+		if (sent == 0)
+			return "sent: 0";
+		return "sent: " + sent + " timing error us min/avg/max: " + errMin / 1000 + "/" + errSum / sent / 1000 + "/" + errMax / 1000;
+	}
+}
@@ -0,0 +1,169 @@
+package com.ashbysoft;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Streams received messages into a Standard MIDI File (type 0 or 1)
+ * through a buffered FileChannel. Delta times are written as events
+ * arrive and the data track length is patched in on close(), so nothing
+ * but the output buffer is held in memory however long we record.
+ *
+ * Timing: division is TICKS_PER_QN with a fixed tempo of US_PER_QN, so
+ * one tick is 100us. Realtime/common messages are stored as F7 escapes,
+ * active sensing is skipped.
+ */
+public class SmfRecorder {
+
+	public static final int TICKS_PER_QN = 10000;
+	public static final int US_PER_QN = 1000000;
+	public static final int US_PER_TICK = US_PER_QN / TICKS_PER_QN;
+
+	private RandomAccessFile raf;
+	private FileChannel ch;
+	private ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+	private int type;
+	private long lenPos;			// file offset of data MTrk length
+	private long trkLen = 0;		// bytes written to data MTrk so far
+	private long startUs = -1;
+	private long lastTick = 0;
+	private int runStat = 0;
+	private long events = 0;
+	private long skipped = 0;
+
+	public SmfRecorder(File f, int type) throws IOException {
+		this.type = type == 0 ? 0 : 1;
+		raf = new RandomAccessFile(f, "rw");
+		raf.setLength(0);
+		ch = raf.getChannel();
+		// header chunk
+		buf.put("MThd".getBytes()).putInt(6);
+		buf.putShort((short) this.type).putShort((short) (this.type == 0 ? 1 : 2)).putShort((short) TICKS_PER_QN);
+		if (this.type == 1) {
+			// conductor track: tempo + end of track
+			buf.put("MTrk".getBytes()).putInt(11);
+			putTempo();
+			buf.put((byte) 0).put((byte) 0xff).put((byte) 0x2f).put((byte) 0);
+		}
+		buf.put("MTrk".getBytes());
+		lenPos = buf.position();
+		buf.putInt(0);
+		if (this.type == 0) {
+			putTempo();
+			trkLen += 7;
+		}
+	}
+
+	private void putTempo() {
+		buf.put((byte) 0).put((byte) 0xff).put((byte) 0x51).put((byte) 3);
+		buf.put((byte) (US_PER_QN >> 16)).put((byte) (US_PER_QN >> 8)).put((byte) US_PER_QN);
+	}
+
+	public synchronized void record(byte[] b, int n, long ts) throws IOException {
+		if (ch == null || n < 1)
+			return;
+		int st = ((int) b[0]) & 0xff;
+		if (0xfe == st) {
+			skipped++;
+			return;
+		}
+		if (ts < 0)
+			ts = System.nanoTime() / 1000;
+		if (startUs < 0)
+			startUs = ts;
+		long tick = (ts - startUs) / US_PER_TICK;
+		if (tick < lastTick)
+			tick = lastTick;
+		// worst case: delta + status + length + data
+		ensure(4 + 1 + 4 + n);
+		int p = buf.position();
+		putVar(tick - lastTick);
+		lastTick = tick;
+		if (st < 0xf0) {
+			// channel message, use running status where we can
+			if (st != runStat)
+				buf.put((byte) st);
+			runStat = st;
+			buf.put(b, 1, n - 1);
+		} else if (0xf0 == st) {
+			buf.put((byte) 0xf0);
+			putVar(n - 1);
+			buf.put(b, 1, n - 1);
+			runStat = 0;
+		} else if (0xf7 == st) {
+			// sysex continuation packet
+			buf.put((byte) 0xf7);
+			putVar(n - 1);
+			buf.put(b, 1, n - 1);
+			runStat = 0;
+		} else {
+			// system common/realtime, escaped
+			buf.put((byte) 0xf7);
+			putVar(n);
+			buf.put(b, 0, n);
+			runStat = 0;
+		}
+		trkLen += buf.position() - p;
+		events++;
+	}
+
+	// Finish the track; the file is closed even if that fails (after a failed record(), say)
+	public synchronized void close() throws IOException {
+		if (ch == null)
+			return;
+		try {
+			ensure(4);
+			buf.put((byte) 0).put((byte) 0xff).put((byte) 0x2f).put((byte) 0);
+			trkLen += 4;
+			flush();
+			ByteBuffer len = ByteBuffer.allocate(4);
+			len.putInt((int) trkLen).flip();
+			ch.write(len, lenPos);
+			ch.force(false);
+		} finally {
+			FileChannel c = ch;
+			ch = null;
+			c.close();
+			raf.close();
+		}
+	}
+
+	private void putVar(long v) {
+		if (v > 0x0fffffff)
+			v = 0x0fffffff;
+		int sh = 21;
+		while (sh > 0 && (v >> sh) == 0)
+			sh -= 7;
+		for (; sh > 0; sh -= 7)
+			buf.put((byte) (0x80 | ((v >> sh) & 0x7f)));
+		buf.put((byte) (v & 0x7f));
+	}
+
+	private void ensure(int n) throws IOException {
+		if (buf.remaining() < n) {
+			flush();
+			if (buf.capacity() < n) {
+				// oversized sysex, grow once
+				buf = ByteBuffer.allocateDirect(Integer.highestOneBit(n) << 1);
+			}
+		}
+	}
+
+	private void flush() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			ch.write(buf);
+		buf.clear();
+	}
+
+	public synchronized long getEvents() {
+		return events;
+	}
+
+	public String toString() {
+		return "SMF type " + type + ": " + events + " events, " + trkLen + " bytes, " + skipped + " skipped";
+	}
+}
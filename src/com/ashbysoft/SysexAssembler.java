@@ -0,0 +1,106 @@
+package com.ashbysoft;
+
+/*
+ * Stitches sysex split over several driver messages (F0 .. without F7,
+ * then F7 continuations, the last ending in F7) back into one message,
+ * per input port. Sits between RxMerge and the receive path, on the
+ * consumer thread. Complete sysex and everything else is passed on as it
+ * is; only fragments are copied, once, into the port's buffer, which
+ * doubles as needed up to the maximum size and is kept for the next
+ * message. Real-time messages may arrive between fragments and are
+ * passed on straight away. A message over the maximum, or cut short by
+ * another status byte, is dropped and counted.
+ */
+public class SysexAssembler implements RxMerge.Sink {
+
+	private static final int INITIAL = 1024;
+
+	private final RxMerge.Sink sink;
+	private final int max;
+
+	// per port: buffer, bytes so far (-1 idle, -2 discarding), timestamp of the first fragment
+	private final byte[][] bufs;
+	private final int[] lens;
+	private final long[] stamps;
+
+	// consumer thread only
+	private long assembled = 0, fragments = 0, oversized = 0, truncated = 0, grown = 0;
+
+	public SysexAssembler(int nports, int max, RxMerge.Sink sink) {
+		this.sink = sink;
+		this.max = max;
+		bufs = new byte[nports][];
+		lens = new int[nports];
+		stamps = new long[nports];
+		for (int p = 0; p < nports; p++)
+			lens[p] = -1;
+	}
+
+	public void receive(int port, byte[] b, int n, long ts, long arrivalNs) {
+		int st = n > 0 ? b[0] & 0xff : 0;
+		boolean ends = n > 1 && (b[n - 1] & 0xff) == 0xf7;
+		int len = lens[port];
+		if (st >= 0xf8) {
+			// real-time, allowed anywhere
+			sink.receive(port, b, n, ts, arrivalNs);
+		} else if (0xf0 == st) {
+			if (len >= 0)
+				truncated++;
+			if (ends) {
+				lens[port] = -1;
+				sink.receive(port, b, n, ts, arrivalNs);
+			} else {
+				fragments++;
+				lens[port] = 0;
+				stamps[port] = ts;
+				append(port, b, 0, n);
+			}
+		} else if (0xf7 == st && len != -1) {
+			// continuation: data without its F7 status
+			fragments++;
+			if (len >= 0)
+				append(port, b, 1, n - 1);
+			if (ends) {
+				len = lens[port];
+				lens[port] = -1;
+				if (len > 0) {
+					assembled++;
+					sink.receive(port, bufs[port], len, stamps[port], arrivalNs);
+				}
+			}
+		} else {
+			if (len != -1) {
+				truncated++;
+				lens[port] = -1;
+			}
+			sink.receive(port, b, n, ts, arrivalNs);
+		}
+	}
+
+	private void append(int port, byte[] b, int o, int n) {
+		int len = lens[port];
+		if (len + n > max) {
+			oversized++;
+			lens[port] = -2;
+			return;
+		}
+		byte[] buf = bufs[port];
+		if (buf == null || len + n > buf.length) {
+			int cap = buf == null ? INITIAL : buf.length;
+			while (cap < len + n)
+				cap <<= 1;
+			byte[] nb = new byte[Math.min(cap, max)];
+			if (buf != null)
+				System.arraycopy(buf, 0, nb, 0, len);
+			bufs[port] = buf = nb;
+			grown++;
+		}
+		System.arraycopy(b, o, buf, len, n);
+		lens[port] = len + n;
+	}
+
+	public String toString() {
+		return "sysex: assembled " + assembled + " from " + fragments + " fragments, oversized " + oversized +
+			" (max " + max + "), truncated " + truncated + ", buffers grown " + grown;
+	}
+}
@@ -0,0 +1,72 @@
+package com.ashbysoft;
+
+/*
+ * Bounds-checked read view of a sysex message for decoders: b[pos..end),
+ * end excluding the F7. Reading past the end returns -1 and marks the
+ * cursor as overrun instead of throwing, so a short or corrupt message
+ * decodes as far as it goes. Re-usable via set(), no copies are made.
+ */
+public class SysexCursor {
+
+	private byte[] b;
+	private int pos;
+	private int end;
+	private boolean overrun;
+
+	// View of b[o..e), a trailing F7 is left out
+	public SysexCursor set(byte[] b, int o, int e) {
+		this.b = b;
+		pos = o;
+		end = Math.min(e, b.length);
+		if (end > o && (b[end - 1] & 0xff) == 0xf7)
+			end--;
+		overrun = false;
+		return this;
+	}
+
+	// Next byte (0-255), -1 past the end
+	public int next() {
+		if (pos < end)
+			return b[pos++] & 0xff;
+		overrun = true;
+		return -1;
+	}
+
+	// Byte i ahead of the current position, -1 past the end
+	public int peek(int i) {
+		int p = pos + i;
+		return p >= 0 && p < end ? b[p] & 0xff : -1;
+	}
+
+	public SysexCursor skip(int n) {
+		pos += n;
+		if (pos > end) {
+			pos = end;
+			overrun = true;
+		}
+		return this;
+	}
+
+	// Are there n more bytes?
+	public boolean has(int n) {
+		return end - pos >= n;
+	}
+
+	public int remaining() {
+		return end - pos;
+	}
+
+	public int position() {
+		return pos;
+	}
+
+	// Has anything been read past the end?
+	public boolean overrun() {
+		return overrun;
+	}
+
+	// Underlying array, for callers taking their own (checked) b[position()..position()+remaining())
+	public byte[] array() {
+		return b;
+	}
+}
@@ -2,4 +2,8 @@ package com.ashbysoft;
 
 public interface SysexLoader {
 	public SysexModule loadModule(String id);
+	// Module handling sysex for manufacturer mfId (as MidiDecoder.decode() encodes it) from device dev on input port, or null
+	public SysexModule module(int port, int mfId, int dev);
+	// As module(), for a device that has just identified itself: binds or creates its own instance
+	public SysexModule identify(int port, int mfId, int dev);
 }
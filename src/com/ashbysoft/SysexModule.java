@@ -1,10 +1,29 @@
 package com.ashbysoft;
 
+import java.util.concurrent.CompletableFuture;
+
 import javax.sound.midi.Receiver;
 
+/*
+ * Manufacturer specific sysex support. Implementations are listed in
+ * META-INF/services/com.ashbysoft.SysexModule, instantiated once at
+ * startup and handed every sysex carrying one of their manufacturer IDs.
+ * There is an instance per input port and device ID (the byte following
+ * the manufacturer ID), see ModuleTable.
+ */
 public interface SysexModule {
+	public int[] getManufacturers();
+	public void setDevice(int id);
+	// Incoming MIDI clock, for transport commands
+	public void setClock(ClockTracker clock);
+	// Where to print results that complete later, in order with the RX dump
+	public void setOutput(DumpWriter out);
 	public void idInfo(int id, int family, int product, int version);
-	public void decodeSysex(byte[] b, int o, StringBuffer sb);
+	// c is positioned at the byte following the manufacturer ID
+	public void decodeSysex(SysexCursor c, StringBuffer sb);
+	public void handleSysex(byte[] b, int o, int e);
 	public String[] getCommands();
 	public String command(String cmd, Receiver rcv);
+	// Completes when no replies from the device are outstanding
+	public CompletableFuture<Void> idle();
 }
@@ -0,0 +1,347 @@
+package com.ashbysoft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Declarative sysex message layouts, compiled once into flat decode plans
+ * and run by a single interpreter loop. A row is a key, "<fn>" or
+ * "<fn>.<sub>" (hex), and a template: plain text is copied, fields read
+ * bytes from the cursor (positioned after the function code):
+ *   {u}            number
+ *   {w} / {w 10}   14 bit number (lsb first), / {w 10} in tenths
+ *   {-}            skip a byte
+ *   {x}            the rest of the message in hex
+ *   {t tbl}        byte through a table, the number if the entry is null
+ *   {t tbl|fb}     .. falling back to fb[kind] for null entries
+ *   {k} / {k tbl}  byte is the kind (level kind/EQ band), printed via tbl
+ *   {n}            byte count of what follows, sets the record count
+ *   {m}            sub-command: carry on with row "<fn>.<sub>"
+ *   [..]           record, repeated (count - bytes since {n}) / record
+ *                  length times (to the end without {n}), only as far as
+ *                  the message goes
+ * Tables are named when the schema is built. Decoding allocates nothing.
+ * For code that reads the bytes itself (DpsMixer, TempoMap) each row's
+ * record layout is kept too: where the first record starts, its length
+ * and the offsets of its {u}, {w} and {t} fields.
+ */
+public class SysexSchema {
+
+	// plan opcodes, each followed by its arguments
+	private static final int END = 0, LIT = 1, NUM = 2, SKIP = 3, HEX = 4, TAB = 5, KIND = 6, COUNT = 7,
+		SUB = 8, REC = 9, ENDREC = 10, WORD = 11;
+
+	private int[] code = new int[0];
+	private List<String> lits = new ArrayList<String>();
+	private String[][] tabs;
+	private String[] tabNames;
+
+	// entry points by function, and by function and sub-command (-1: none)
+	private int[] fns = new int[128];
+	private int[][] subs = new int[128][];
+
+	// by row(): bytes before the record (all of them if none), value field offsets in the record
+	private int[] heads = new int[128 * 129];
+	private int[][] fields = new int[128 * 129][];
+
+	/*
+	 * rows: { key, template, key, template, .. }, tables: { name, String[], .. }
+	 */
+	public SysexSchema(String[] rows, Object[] tables) {
+		tabNames = new String[tables.length / 2];
+		tabs = new String[tables.length / 2][];
+		for (int i = 0; i < tabNames.length; i++) {
+			tabNames[i] = (String) tables[i * 2];
+			tabs[i] = (String[]) tables[i * 2 + 1];
+		}
+		for (int i = 0; i < fns.length; i++)
+			fns[i] = -1;
+		int[] buf = new int[64];
+		int n = 0;
+		for (int r = 0; r < rows.length; r += 2) {
+			String key = rows[r];
+			int dot = key.indexOf('.');
+			int fn = Integer.parseInt(dot < 0 ? key : key.substring(0, dot), 16);
+			if (dot < 0) {
+				fns[fn] = n;
+			} else {
+				if (subs[fn] == null) {
+					subs[fn] = new int[128];
+					for (int i = 0; i < 128; i++)
+						subs[fn][i] = -1;
+				}
+				subs[fn][Integer.parseInt(key.substring(dot + 1), 16)] = n;
+			}
+			int[] p = compile(key, rows[r + 1], dot < 0 ? row(fn, -1) : row(fn, Integer.parseInt(key.substring(dot + 1), 16)));
+			while (n + p.length > buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			System.arraycopy(p, 0, buf, n, p.length);
+			n += p.length;
+		}
+		code = Arrays.copyOf(buf, n);
+	}
+
+	// Row "<fn>.<sub>", or "<fn>" for sub -1
+	private static int row(int fn, int sub) {
+		return fn * 129 + sub + 1;
+	}
+
+	private int[] compile(String key, String t, int row) {
+		int[] p = new int[t.length() * 3 + 1];
+		int n = 0;
+		int rec = -1, recBytes = 0, bytes = 0, head = -1;
+		int[] fs = new int[t.length()];
+		int nf = 0;
+		StringBuffer lit = new StringBuffer();
+		for (int i = 0; i < t.length(); i++) {
+			char ch = t.charAt(i);
+			if ('{' != ch && '[' != ch && ']' != ch) {
+				lit.append(ch);
+				continue;
+			}
+			if (lit.length() > 0) {
+				p[n++] = LIT;
+				p[n++] = lits.size();
+				lits.add(lit.toString());
+				lit.setLength(0);
+			}
+			if ('[' == ch) {
+				if (rec >= 0)
+					throw new IllegalArgumentException(key + ": nested record");
+				p[n++] = REC;
+				rec = n;
+				n += 2;
+				recBytes = 0;
+				head = bytes;
+			} else if (']' == ch) {
+				if (rec < 0)
+					throw new IllegalArgumentException(key + ": ']' without '['");
+				p[n++] = ENDREC;
+				p[rec] = recBytes;
+				p[rec + 1] = n - rec - 2;
+				rec = -1;
+			} else {
+				int e = t.indexOf('}', i);
+				if (e < 0)
+					throw new IllegalArgumentException(key + ": unterminated field");
+				String[] f = t.substring(i + 1, e).trim().split("\\s+");
+				i = e;
+				if (rec >= 0 && ("u".equals(f[0]) || "w".equals(f[0]) || "t".equals(f[0])))
+					fs[nf++] = recBytes;
+				recBytes++;
+				bytes++;
+				if ("u".equals(f[0])) {
+					p[n++] = NUM;
+				} else if ("w".equals(f[0])) {
+					p[n++] = WORD;
+					p[n++] = f.length > 1 ? Integer.parseInt(f[1]) : 1;
+					recBytes++;
+					bytes++;
+				} else if ("-".equals(f[0])) {
+					p[n++] = SKIP;
+				} else if ("x".equals(f[0])) {
+					p[n++] = HEX;
+				} else if ("n".equals(f[0])) {
+					p[n++] = COUNT;
+				} else if ("m".equals(f[0])) {
+					p[n++] = SUB;
+				} else if ("k".equals(f[0])) {
+					p[n++] = KIND;
+					p[n++] = f.length > 1 ? table(key, f[1]) : -1;
+				} else if ("t".equals(f[0]) && f.length > 1) {
+					int bar = f[1].indexOf('|');
+					p[n++] = TAB;
+					p[n++] = table(key, bar < 0 ? f[1] : f[1].substring(0, bar));
+					p[n++] = bar < 0 ? -1 : table(key, f[1].substring(bar + 1));
+				} else {
+					throw new IllegalArgumentException(key + ": unknown field {" + f[0] + "}");
+				}
+			}
+		}
+		if (rec >= 0)
+			throw new IllegalArgumentException(key + ": '[' without ']'");
+		heads[row] = head >= 0 ? head : bytes;
+		if (nf > 0)
+			fields[row] = Arrays.copyOf(fs, nf);
+		if (lit.length() > 0) {
+			p[n++] = LIT;
+			p[n++] = lits.size();
+			lits.add(lit.toString());
+		}
+		p[n++] = END;
+		return Arrays.copyOf(p, n);
+	}
+
+	private int table(String key, String name) {
+		for (int i = 0; i < tabNames.length; i++) {
+			if (tabNames[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException(key + ": no table " + name);
+	}
+
+	// Record length of row "<fn>.<sub>" (sub -1: row "<fn>"), 0 if it has no records
+	public int stride(int fn, int sub) {
+		int pc = -1;
+		if (fn >= 0 && fn < 128 && sub < 0)
+			pc = fns[fn];
+		else if (fn >= 0 && fn < 128 && sub < 128 && subs[fn] != null)
+			pc = subs[fn][sub];
+		for (; pc >= 0 && code[pc] != END; pc += width(code[pc])) {
+			if (REC == code[pc])
+				return code[pc + 1];
+		}
+		return 0;
+	}
+
+	// Offsets of the {u}, {w} and {t} fields in a record of row "<fn>.<sub>", in order, null if none
+	public int[] fields(int fn, int sub) {
+		return fn >= 0 && fn < 128 && sub >= -1 && sub < 128 ? fields[row(fn, sub)] : null;
+	}
+
+	// Where the first record of row "<fn>.<sub>" starts, in bytes from the function code
+	public int recordStart(int fn, int sub) {
+		if (fn < 0 || fn >= 128 || sub < -1 || sub >= 128)
+			return 0;
+		return 1 + (sub >= 0 ? heads[row(fn, -1)] : 0) + heads[row(fn, sub)];
+	}
+
+	private static int width(int op) {
+		switch (op) {
+		case LIT:
+		case KIND:
+		case WORD:
+			return 2;
+		case TAB:
+		case REC:
+			return 3;
+		}
+		return 1;
+	}
+
+	/* The interpreter */
+
+	// Decode the message at c (function code next) into sb, as ": <text>"
+	public void decode(SysexCursor c, StringBuffer sb) {
+		int fn = c.next();
+		int pc = fn >= 0 && fn < 128 ? fns[fn] : -1;
+		if (pc < 0) {
+			sb.append(": function ").append(hex(fn));
+			return;
+		}
+		sb.append(": ");
+		int[] p = code;
+		int kind = 0, count = -1, from = 0;
+		int recs = 0, left = 0, got = 0, loop = 0;
+		while (true) {
+			switch (p[pc]) {
+			case END:
+				return;
+			case LIT:
+				sb.append(lits.get(p[pc + 1]));
+				break;
+			case NUM: {
+				int v = c.next();
+				if (v >= 0)
+					sb.append(v);
+				break;
+			}
+			case WORD: {
+				int lo = c.next();
+				int hi = c.next();
+				if (hi < 0)
+					break;
+				int v = lo | hi << 7;
+				int sc = p[pc + 1];
+				if (sc == 10)
+					sb.append(v / 10).append('.').append(v % 10);
+				else
+					sb.append(v / sc);
+				break;
+			}
+			case SKIP:
+				c.skip(1);
+				break;
+			case HEX:
+				while (c.remaining() > 0)
+					sb.append(hex(c.next())).append(' ');
+				break;
+			case TAB: {
+				int v = c.next();
+				if (v < 0)
+					break;
+				String[] t = tabs[p[pc + 1]];
+				String s = t[v % t.length];
+				if (null == s && p[pc + 2] >= 0) {
+					String[] fb = tabs[p[pc + 2]];
+					s = fb[kind % fb.length];
+				}
+				if (s != null)
+					sb.append(s);
+				else
+					sb.append(v);
+				break;
+			}
+			case KIND:
+				kind = Math.max(0, c.next());
+				if (p[pc + 1] >= 0) {
+					String[] t = tabs[p[pc + 1]];
+					sb.append(t[kind % t.length]);
+				}
+				break;
+			case COUNT:
+				count = c.next();
+				from = c.position();
+				break;
+			case SUB: {
+				int mc = c.next();
+				int[] s = subs[fn];
+				int sp = s != null && mc >= 0 ? s[mc] : -1;
+				if (sp < 0) {
+					sb.append("unknown command ").append(hex(mc));
+					return;
+				}
+				pc = sp;
+				continue;
+			}
+			case REC:
+				// records the byte count promises, as far as the message goes
+				recs = (count < 0 ? c.remaining() : count - (c.position() - from)) / p[pc + 1];
+				left = recs;
+				got = 0;
+				loop = pc + 3;
+				if (left <= 0 || !c.has(p[pc + 1])) {
+					truncated(got, recs, sb);
+					pc = loop + p[pc + 2];
+					continue;
+				}
+				break;
+			case ENDREC:
+				got++;
+				if (--left > 0 && c.has(p[loop - 2])) {
+					pc = loop;
+					continue;
+				}
+				truncated(got, recs, sb);
+				break;
+			}
+			if (c.overrun()) {
+				sb.append(" (truncated)");
+				return;
+			}
+			pc += width(p[pc]);
+		}
+	}
+
+	// Note a dump that stopped short of its byte count
+	private static void truncated(int got, int recs, StringBuffer sb) {
+		if (got < recs)
+			sb.append("(truncated at ").append(got).append(" of ").append(recs).append(')');
+	}
+
+	private static String hex(int v) {
+		String s = Integer.toHexString(v);
+		return (v < 16) ? "0"+s : s;
+	}
+}
@@ -0,0 +1,140 @@
+package com.ashbysoft;
+
+import java.util.Arrays;
+
+/*
+ * DPS tempo map, as sent in a 0x51 reply: F0 47 <id> 51 5A, then one
+ * 6 byte entry per tempo/meter change: bar (14 bit, lsb first), tempo
+ * (quarter notes per minute * 10, 14 bit), meter numerator, denominator,
+ * F7. Entries are packed into one sorted long[] (bar, tempo, meter) with
+ * the start time of each worked out once, so converting a recorder
+ * position to bar/beat is a binary search and a division. Immutable.
+ */
+public class TempoMap {
+
+	// bar << 28 | tempo << 14 | num << 7 | den
+	private final long[] entries;
+	// start of each entry, us from the top of the song
+	private final long[] starts;
+
+	private TempoMap(long[] entries) {
+		this.entries = entries;
+		starts = new long[entries.length];
+		for (int i = 1; i < entries.length; i++)
+			starts[i] = starts[i - 1] + (bar(i) - bar(i - 1)) * barMicros(i - 1);
+	}
+
+	// Decode a 0x51 reply, b[o] the device ID, e the end of the message
+	// (entry layout: the "51" row of AkaiPro.SCHEMA, bar, tempo, numerator, denominator)
+	public static TempoMap decode(byte[] b, int o, int e) {
+		if (e > o && (b[e - 1] & 0xff) == 0xf7)
+			e--;
+		int p = o + 1 + AkaiPro.SCHEMA.recordStart(0x51, -1);
+		int st = AkaiPro.SCHEMA.stride(0x51, -1);
+		int[] f = AkaiPro.SCHEMA.fields(0x51, -1);
+		long[] es = new long[Math.max(0, (e - p) / st) + 1];
+		// room for a default first entry
+		int n = 1;
+		for (; p + st <= e; p += st) {
+			int bar = (b[p + f[0]] & 0x7f) | (b[p + f[0] + 1] & 0x7f) << 7;
+			int tempo = (b[p + f[1]] & 0x7f) | (b[p + f[1] + 1] & 0x7f) << 7;
+			int num = b[p + f[2]] & 0x7f;
+			int den = b[p + f[3]] & 0x7f;
+			if (bar >= 1 && tempo > 0 && num > 0 && den > 0)
+				es[n++] = pack(bar, tempo, num, den);
+		}
+		Arrays.sort(es, 1, n);
+		// one entry per bar
+		int m = 1;
+		for (int i = 1; i < n; i++) {
+			if (m > 1 && es[m - 1] >> 28 == es[i] >> 28)
+				m--;
+			es[m++] = es[i];
+		}
+		// 120bpm 4/4 until the first entry says otherwise
+		if (1 == m || es[1] >> 28 > 1) {
+			es[0] = pack(1, 1200, 4, 4);
+			return new TempoMap(Arrays.copyOf(es, m));
+		}
+		return new TempoMap(Arrays.copyOfRange(es, 1, m));
+	}
+
+	private static long pack(int bar, int tempo, int num, int den) {
+		return (long) bar << 28 | tempo << 14 | num << 7 | den;
+	}
+
+	private int bar(int i) {
+		return (int) (entries[i] >> 28);
+	}
+
+	private int tempo(int i) {
+		return (int) (entries[i] >> 14) & 0x3fff;
+	}
+
+	private int num(int i) {
+		return (int) (entries[i] >> 7) & 0x7f;
+	}
+
+	private int den(int i) {
+		return (int) entries[i] & 0x7f;
+	}
+
+	// Length of one beat (a 1/den note) of entry i
+	private double beatMicros(int i) {
+		return 600e6 / tempo(i) * 4 / den(i);
+	}
+
+	private long barMicros(int i) {
+		return Math.round(beatMicros(i) * num(i));
+	}
+
+	// Entry in force at us
+	private int entryAt(long us) {
+		int i = Arrays.binarySearch(starts, us);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	// Tempo (bpm * 10) at us from the top of the song
+	public int tempoAt(long us) {
+		return tempo(entryAt(us));
+	}
+
+	// "<bar>:<beat>:<tick>" (24 ticks a beat) at us from the top of the song
+	public StringBuffer appendPosition(StringBuffer sb, long us) {
+		int i = entryAt(Math.max(0, us));
+		double beats = (Math.max(0, us) - starts[i]) / beatMicros(i);
+		long whole = (long) beats;
+		int tick = (int) ((beats - whole) * ClockTracker.PPQN);
+		sb.append(bar(i) + whole / num(i)).append(':').append(whole % num(i) + 1).append(':');
+		return sb.append((char) ('0' + tick / 10)).append((char) ('0' + tick % 10));
+	}
+
+	// Time (us from the top of the song) of the start of a bar and beat (1-based)
+	public long timeOf(int bar, int beat) {
+		int lo = 0, hi = entries.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (bar(mid) <= bar)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return starts[lo] + (bar - bar(lo)) * barMicros(lo) + Math.round((beat - 1) * beatMicros(lo));
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("tempo map: ").append(entries.length).append(" entries");
+		for (int i = 0; i < entries.length; i++) {
+			long s = starts[i] / 1000;
+			sb.append("\n  bar ").append(bar(i)).append(" @").append(s / 60000).append(':');
+			sb.append(s / 10000 % 6).append(s / 1000 % 10).append('.').append(s % 1000 / 100);
+			sb.append(' ').append(tempo(i) / 10).append('.').append(tempo(i) % 10).append("bpm ");
+			sb.append(num(i)).append('/').append(den(i));
+		}
+		return sb.toString();
+	}
+}
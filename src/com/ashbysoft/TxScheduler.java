@@ -0,0 +1,293 @@
+package com.ashbysoft;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/*
+ * Outbound queue in front of the hardware Receiver. Messages are sent by
+ * a background thread within a bytes/second budget (default: what a
+ * 31.25kbaud MIDI link carries), in three priority classes: realtime and
+ * transport first, then other short messages, then bulk sysex. A queued
+ * parameter update (controller, program, pitch bend, AkaiPro 0x7b block
+ * for the same channels) is replaced in place by a newer one for the
+ * same parameter, so only the latest value goes out (mixer blocks are
+ * found by a hash of device, mix command, kind and channel list, and
+ * compared in full before one replaces another). A short message only
+ * replaces the last one queued in its class, so it never overtakes
+ * anything sent before it, and bank select, data entry, pedals and
+ * (N)RPN controllers are never merged, as their order matters. Routed
+ * traffic goes in through uncoalesced() and is never merged. PooledSysex
+ * messages are released once sent or superseded. close() sends what is
+ * still queued, for up to CLOSE_MS.
+ */
+public class TxScheduler implements Receiver, Runnable {
+
+	public static final int MIDI_BYTES_PER_SEC = 31250 / 10;
+
+	private static final int REALTIME = 0, SHORT = 1, BULK = 2;
+	private static final long CLOSE_MS = 2000;
+
+	class Item {
+		MidiMessage msg;
+		long key;
+		// next queued item with the same key (mixer block hash collisions)
+		Item same;
+	}
+
+	private Receiver out;
+	private int rate;
+	private int burst = 32;
+	private double tokens = 0;
+	private long lastRefill = System.nanoTime();
+
+	@SuppressWarnings("unchecked")
+	private ArrayDeque<Item>[] queues = (ArrayDeque<Item>[]) new ArrayDeque<?>[] { new ArrayDeque<Item>(), new ArrayDeque<Item>(), new ArrayDeque<Item>() };
+	private HashMap<Long, Item> pending = new HashMap<Long, Item>();
+	private int depth = 0;
+	private Thread sender = null;
+	private volatile boolean running = false;
+
+	// counters
+	private long queued = 0, sent = 0, coalesced = 0, bytes = 0, maxDepth = 0, waitedNs = 0;
+
+	public TxScheduler(Receiver out) {
+		this(out, MIDI_BYTES_PER_SEC);
+	}
+
+	public TxScheduler(Receiver out, int rate) {
+		this.out = out;
+		this.rate = rate;
+	}
+
+	public synchronized void setRate(int rate) {
+		this.rate = Math.max(1, rate);
+	}
+
+	private static int priority(byte[] b, int n) {
+		int st = ((int) b[0]) & 0xff;
+		if (st >= 0xf8)
+			return REALTIME;
+		if (0xf0 == st) {
+			// AkaiPro transport/lock commands
+			if (n > 3 && 0x47 == b[1] && (0x10 == b[3] || (b[3] >= 0x07 && b[3] <= 0x0a)))
+				return REALTIME;
+			return BULK;
+		}
+		return SHORT;
+	}
+
+	// Coalescing key, 0 if this message must not be merged with another (mixer blocks: a hash, see sameParams())
+	private static long key(byte[] b, int n) {
+		int st = ((int) b[0]) & 0xff;
+		switch (st & 0xf0) {
+		case ShortMessage.CONTROL_CHANGE:
+			if (ordered(b[1] & 0x7f))
+				return 0;
+			return 1L << 56 | st << 8 | (b[1] & 0x7f);
+		case ShortMessage.POLY_PRESSURE:
+			return 1L << 56 | st << 8 | (b[1] & 0x7f);
+		case ShortMessage.PROGRAM_CHANGE:
+		case ShortMessage.CHANNEL_PRESSURE:
+		case ShortMessage.PITCH_BEND:
+			return 1L << 56 | st << 8;
+		}
+		if (0xf0 == st && n > 8 && 0x47 == b[1] && 0x7b == b[3]) {
+			// AkaiPro mixer block: device, mix command, kind and channel list
+			int st2 = AkaiPro.stride(b[6]);
+			if (st2 == 0)
+				return 0;
+			long h = 2L << 56 | (b[2] & 0x7f) << 16 | (b[6] & 0x7f) << 8 | (b[7] & 0x7f);
+			for (int o = 8; o + st2 < n; o += st2)
+				h = h * 31 + b[o];
+			return h | 2L << 56;
+		}
+		return 0;
+	}
+
+	// Bank select, data entry, sustain and other pedals, (N)RPN select and increment: a sequence, not a value
+	private static boolean ordered(int cc) {
+		return 0 == cc || 32 == cc || 6 == cc || 38 == cc || (cc >= 64 && cc <= 69) || (cc >= 96 && cc <= 101);
+	}
+
+	// Does queued message q set the same parameters as b[0..n)? Short message keys are exact.
+	private static boolean sameParams(MidiMessage q, byte[] b, int n) {
+		if (0xf0 != (((int) b[0]) & 0xff))
+			return true;
+		byte[] a = q instanceof PooledSysex ? ((PooledSysex) q).array() : q.getMessage();
+		if (q.getLength() != n || a[2] != b[2] || a[6] != b[6] || a[7] != b[7])
+			return false;
+		int st = AkaiPro.stride(b[6]);
+		for (int o = 8; o + st < n; o += st) {
+			if (a[o] != b[o])
+				return false;
+		}
+		return true;
+	}
+
+	/* Receiver interface */
+
+	public void send(MidiMessage msg, long ts) {
+		send(msg, true);
+	}
+
+	// Receiver for routed traffic: queued as sent, never merged
+	public Receiver uncoalesced() {
+		return new Receiver() {
+			public void send(MidiMessage msg, long ts) {
+				TxScheduler.this.send(msg, false);
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	private void send(MidiMessage msg, boolean merge) {
+		byte[] b = msg instanceof PooledSysex ? ((PooledSysex) msg).array() : msg.getMessage();
+		int n = msg.getLength();
+		if (n < 1)
+			return;
+		long k = merge ? key(b, n) : 0;
+		int p = priority(b, n);
+		synchronized (this) {
+			if (k != 0) {
+				for (Item it = pending.get(k); it != null; it = it.same) {
+					// short messages: only the last one queued, so nothing is overtaken
+					if (sameParams(it.msg, b, n) && (BULK == p || queues[p].peekLast() == it)) {
+						release(it.msg);
+						it.msg = msg;
+						coalesced++;
+						return;
+					}
+				}
+			}
+			Item it = new Item();
+			it.msg = msg;
+			it.key = k;
+			queues[p].add(it);
+			if (k != 0)
+				it.same = pending.put(k, it);
+			queued++;
+			if (++depth > maxDepth)
+				maxDepth = depth;
+			if (sender == null)
+				start();
+			notifyAll();
+		}
+	}
+
+	// Send what is queued (for up to CLOSE_MS), then stop the sender
+	public void close() {
+		long until = System.currentTimeMillis() + CLOSE_MS;
+		Thread t;
+		synchronized (this) {
+			try {
+				long w;
+				while (depth > 0 && sender != null && (w = until - System.currentTimeMillis()) > 0)
+					wait(w);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running = false;
+			notifyAll();
+			t = sender;
+		}
+		if (t != null) {
+			try {
+				t.join(Math.max(1, until - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void start() {
+		running = true;
+		sender = new Thread(this, "MidiFun-tx");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	private synchronized Item next() throws InterruptedException {
+		while (running) {
+			for (int p = 0; p < queues.length; p++) {
+				Item it = queues[p].poll();
+				if (it != null) {
+					if (it.key != 0)
+						unlink(it);
+					depth--;
+					return it;
+				}
+			}
+			wait();
+		}
+		return null;
+	}
+
+	private void unlink(Item it) {
+		Item h = pending.get(it.key);
+		if (h == it) {
+			if (it.same != null)
+				pending.put(it.key, it.same);
+			else
+				pending.remove(it.key);
+			return;
+		}
+		for (; h != null; h = h.same) {
+			if (h.same == it) {
+				h.same = it.same;
+				return;
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			Item it;
+			while ((it = next()) != null) {
+				int n = it.msg.getLength();
+				long w = reserve(n);
+				if (w > 0) {
+					Thread.sleep(w / 1000000, (int) (w % 1000000));
+					waitedNs += w;
+				}
+				out.send(it.msg, -1);
+				release(it.msg);
+				synchronized (this) {
+					sent++;
+					bytes += n;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private static void release(MidiMessage msg) {
+		if (msg instanceof PooledSysex)
+			((PooledSysex) msg).release();
+	}
+
+	// Take n bytes from the budget, returns ns to wait before sending
+	private synchronized long reserve(int n) {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+		lastRefill = now;
+		tokens -= n;
+		return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+	}
+
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	public synchronized String toString() {
+		return "tx: queued " + queued + " sent " + sent + " (" + bytes + " bytes) coalesced " + coalesced +
+			" depth " + depth + " [rt " + queues[REALTIME].size() + " short " + queues[SHORT].size() + " bulk " +
+			queues[BULK].size() + "] max " + maxDepth + " throttled " + waitedNs / 1000000 + "ms (" + rate + " bytes/s)";
+	}
+}
@@ -0,0 +1,133 @@
+package com.ashbysoft;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+/*
+ * In-process MIDI device for running without hardware. Messages sent to
+ * its Receiver go to the 'far end' (eg: DpsSimulator), messages passed to
+ * inject() come out of its Transmitters as if received from the wire.
+ * Delivery to transmitters is serialised, as a real driver would be.
+ */
+public class VirtualMidiDevice implements MidiDevice {
+
+	static class VInfo extends MidiDevice.Info {
+		VInfo(String name) {
+			super(name, "ashbysoft", "Virtual loopback MIDI device", "1.0");
+		}
+	}
+
+	private MidiDevice.Info info;
+	private Receiver farEnd = null;
+	private boolean open = false;
+	private long openedAt = 0;
+	private List<VTransmitter> txs = new ArrayList<VTransmitter>();
+	private VTransmitter[] txArr = new VTransmitter[0];
+
+	public VirtualMidiDevice(String name) {
+		info = new VInfo(name);
+	}
+
+	public void setFarEnd(Receiver r) {
+		farEnd = r;
+	}
+
+	// Deliver a message to everything listening on our transmitters
+	public synchronized void inject(MidiMessage msg, long ts) {
+		if (!open)
+			return;
+		VTransmitter[] a = txArr;
+		for (int i = 0; i < a.length; i++) {
+			Receiver r = a[i].rcv;
+			if (r != null)
+				r.send(msg, ts);
+		}
+	}
+
+	/* MidiDevice interface */
+
+	public MidiDevice.Info getDeviceInfo() {
+		return info;
+	}
+
+	public synchronized void open() throws MidiUnavailableException {
+		if (!open)
+			openedAt = System.nanoTime();
+		open = true;
+	}
+
+	public synchronized void close() {
+		open = false;
+		txs.clear();
+		txArr = new VTransmitter[0];
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	public long getMicrosecondPosition() {
+		return open ? (System.nanoTime() - openedAt) / 1000 : -1;
+	}
+
+	public int getMaxReceivers() {
+		return -1;
+	}
+
+	public int getMaxTransmitters() {
+		return -1;
+	}
+
+	public Receiver getReceiver() throws MidiUnavailableException {
+		return new Receiver() {
+			public void send(MidiMessage msg, long ts) {
+				Receiver r = farEnd;
+				if (r != null && open)
+					r.send(msg, ts);
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	public List<Receiver> getReceivers() {
+		return new ArrayList<Receiver>();
+	}
+
+	public synchronized Transmitter getTransmitter() throws MidiUnavailableException {
+		VTransmitter t = new VTransmitter();
+		txs.add(t);
+		txArr = txs.toArray(new VTransmitter[txs.size()]);
+		return t;
+	}
+
+	public synchronized List<Transmitter> getTransmitters() {
+		return new ArrayList<Transmitter>(txs);
+	}
+
+	class VTransmitter implements Transmitter {
+		volatile Receiver rcv = null;
+
+		public void setReceiver(Receiver r) {
+			rcv = r;
+		}
+
+		public Receiver getReceiver() {
+			return rcv;
+		}
+
+		public void close() {
+			synchronized (VirtualMidiDevice.this) {
+				txs.remove(this);
+				txArr = txs.toArray(new VTransmitter[txs.size()]);
+			}
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.ashbysoft;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/*
+ * Live voice state of the received stream: which notes are held, the
+ * last value of every controller, program and pitch bend, per channel.
+ * Runs as a pipeline filter (ahead of the display filter, so notes that
+ * are not shown are still tracked, everything is passed on). State is
+ * kept in flat 16 x 128 arrays indexed by channel << 7 | key, with a
+ * held count per channel, so every message is an O(1) update and
+ * nothing is allocated.
+ *
+ * NoteOn with velocity 0 is a note off (what running status senders
+ * use) and counted as such. A NoteOn for a key that is already held
+ * means a note off went missing (retrigger); a note off for a key that
+ * is not held is an orphan. All notes/sound off, the mode messages and
+ * system reset release their notes. Notes held longer than the stuck
+ * limit are reported once each by a checker thread. panic() sends note
+ * offs for every held note, then sustain off and all notes off on every
+ * channel. Written by the consumer thread only, readers may see slightly
+ * stale values.
+ */
+public class VoiceTracker implements Pipeline.Filter, Runnable {
+
+	public static final int CHANNELS = 16;
+
+	// per channel << 7 | key: velocity (0: not held), time held from (us), stuck reported
+	private final byte[] vel = new byte[CHANNELS * 128];
+	private final long[] onUs = new long[CHANNELS * 128];
+	private final boolean[] reported = new boolean[CHANNELS * 128];
+	// per channel << 7 | controller: last value, -1 unknown
+	private final byte[] ctrl = new byte[CHANNELS * 128];
+	// per channel
+	private final int[] held = new int[CHANNELS];
+	private final int[] program = new int[CHANNELS];
+	private final int[] bend = new int[CHANNELS];
+
+	// counters
+	private volatile long ons = 0, offs = 0, zeroOffs = 0, retriggers = 0, orphans = 0, stuck = 0, panics = 0;
+
+	// stuck note checker
+	private DumpWriter out;
+	private volatile long stuckMillis = 10000;
+	private volatile boolean running = false;
+	private Thread checker;
+
+	public VoiceTracker(DumpWriter out) {
+		this.out = out;
+		clear();
+	}
+
+	public boolean accept(byte[] b, int o, int n, long ts) {
+		int st = ((int) b[o]) & 0xff;
+		if (st >= 0xf0) {
+			if (0xff == st)
+				clear();
+			return true;
+		}
+		int ch = st & 0xf;
+		int d1 = n > 1 ? b[o + 1] & 0x7f : 0;
+		int d2 = n > 2 ? b[o + 2] & 0x7f : 0;
+		switch (st & 0xf0) {
+		case 0x90:
+			if (d2 > 0) {
+				noteOn(ch << 7 | d1, d2);
+			} else {
+				// velocity 0 is a note off
+				zeroOffs++;
+				noteOff(ch << 7 | d1);
+			}
+			break;
+		case 0x80:
+			noteOff(ch << 7 | d1);
+			break;
+		case 0xb0:
+			ctrl[ch << 7 | d1] = (byte) d2;
+			// all sound/notes off, omni/mono/poly: every note of the channel
+			if (120 == d1 || d1 >= 123)
+				release(ch);
+			else if (121 == d1)
+				bend[ch] = 8192;
+			break;
+		case 0xc0:
+			program[ch] = d1;
+			break;
+		case 0xe0:
+			bend[ch] = d1 | d2 << 7;
+			break;
+		}
+		return true;
+	}
+
+	private void noteOn(int i, int v) {
+		ons++;
+		if (vel[i] != 0)
+			retriggers++;
+		else
+			held[i >> 7]++;
+		vel[i] = (byte) v;
+		onUs[i] = System.nanoTime() / 1000;
+		reported[i] = false;
+	}
+
+	private void noteOff(int i) {
+		offs++;
+		if (0 == vel[i]) {
+			orphans++;
+			return;
+		}
+		vel[i] = 0;
+		held[i >> 7]--;
+	}
+
+	// Every note of channel ch off; 128 steps, only on the rare channel mode messages
+	private void release(int ch) {
+		if (0 == held[ch])
+			return;
+		for (int i = ch << 7; i < (ch + 1) << 7; i++)
+			vel[i] = 0;
+		held[ch] = 0;
+	}
+
+	// Back to power on state: nothing held, controllers unknown
+	public void clear() {
+		for (int i = 0; i < vel.length; i++) {
+			vel[i] = 0;
+			ctrl[i] = -1;
+		}
+		for (int ch = 0; ch < CHANNELS; ch++) {
+			held[ch] = 0;
+			program[ch] = -1;
+			bend[ch] = 8192;
+		}
+	}
+
+	/* State, any thread */
+
+	public boolean isHeld(int ch, int key) {
+		return vel[ch << 7 | key] != 0;
+	}
+
+	public int getHeld(int ch) {
+		return held[ch];
+	}
+
+	// Last value of controller cc, -1 if not seen
+	public int getController(int ch, int cc) {
+		return ctrl[ch << 7 | cc];
+	}
+
+	// -1 if not seen
+	public int getProgram(int ch) {
+		return program[ch];
+	}
+
+	public int getBend(int ch) {
+		return bend[ch];
+	}
+
+	/*
+	 * Note off for every held note, then sustain off and all notes off on
+	 * every channel, to out; returns the number of note offs sent.
+	 */
+	public int panic(Receiver out) {
+		int n = 0;
+		try {
+			for (int ch = 0; ch < CHANNELS; ch++) {
+				for (int i = ch << 7; held[ch] > 0 && i < (ch + 1) << 7; i++) {
+					if (vel[i] != 0) {
+						out.send(new ShortMessage(ShortMessage.NOTE_OFF, ch, i & 0x7f, 0), -1);
+						n++;
+					}
+				}
+				out.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, ch, 64, 0), -1);
+				out.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, ch, 123, 0), -1);
+			}
+		} catch (InvalidMidiDataException e) {
+			// not with these values
+		}
+		panics++;
+		return n;
+	}
+
+	/* Stuck note checker */
+
+	public void run() {
+		StringBuffer sb = new StringBuffer();
+		while (running) {
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+			}
+			long limit = stuckMillis * 1000;
+			if (!running || limit <= 0)
+				continue;
+			long now = System.nanoTime() / 1000;
+			for (int ch = 0; ch < CHANNELS; ch++) {
+				for (int i = ch << 7; held[ch] > 0 && i < (ch + 1) << 7; i++) {
+					if (vel[i] != 0 && !reported[i] && now - onUs[i] > limit) {
+						reported[i] = true;
+						stuck++;
+						sb.setLength(0);
+						sb.append("  stuck note: ch ").append(ch).append(" key ").append(i & 0x7f);
+						sb.append(" held ").append((now - onUs[i]) / 1000000).append('s');
+						out.println(sb);
+					}
+				}
+			}
+		}
+	}
+
+	public void start() {
+		running = true;
+		checker = new Thread(this, "MidiFun-voices");
+		checker.setDaemon(true);
+		checker.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (checker != null)
+			checker.interrupt();
+	}
+
+	/*
+	 * "stuck <ms>|off" report notes held longer than that, "reset" the
+	 * counters, "clear" the state; returns an error message or null.
+	 */
+	public String configure(String args) {
+		String[] a = args.trim().split("\\s+");
+		try {
+			if ("stuck".equals(a[0]) && a.length > 1) {
+				stuckMillis = "off".equals(a[1]) ? 0 : Math.max(0, Long.parseLong(a[1]));
+			} else if ("reset".equals(a[0])) {
+				ons = offs = zeroOffs = retriggers = orphans = stuck = panics = 0;
+			} else if ("clear".equals(a[0])) {
+				clear();
+			} else {
+				return "invalid notes command: " + args;
+			}
+		} catch (NumberFormatException e) {
+			return "invalid notes value: " + e.getMessage();
+		}
+		return null;
+	}
+
+	// Held notes, program, bend and controllers seen on channel ch
+	public String show(int ch) {
+		StringBuffer sb = new StringBuffer("ch ").append(ch).append(": held");
+		for (int i = ch << 7; i < (ch + 1) << 7; i++) {
+			if (vel[i] != 0)
+				sb.append(' ').append(i & 0x7f).append('/').append(vel[i]);
+		}
+		sb.append("; program ").append(program[ch] < 0 ? "-" : String.valueOf(program[ch]));
+		sb.append(", bend ").append(bend[ch] - 8192).append("; cc");
+		for (int i = ch << 7; i < (ch + 1) << 7; i++) {
+			if (ctrl[i] >= 0)
+				sb.append(' ').append(i & 0x7f).append('=').append(ctrl[i]);
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("notes: held");
+		int total = 0;
+		for (int ch = 0; ch < CHANNELS; ch++) {
+			if (held[ch] > 0)
+				sb.append(" ch").append(ch).append(':').append(held[ch]);
+			total += held[ch];
+		}
+		if (0 == total)
+			sb.append(" none");
+		sb.append("; on ").append(ons).append(" off ").append(offs).append(" (velocity 0: ").append(zeroOffs);
+		sb.append(") retriggered ").append(retriggers).append(" orphan offs ").append(orphans);
+		sb.append(" stuck ").append(stuck).append(" panics ").append(panics);
+		sb.append("; stuck after ").append(stuckMillis > 0 ? stuckMillis + "ms" : "off");
+		return sb.toString();
+	}
+}
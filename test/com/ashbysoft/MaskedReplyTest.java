@@ -0,0 +1,56 @@
+package com.ashbysoft;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * With sysex hidden from the display (filter drop sysex), replies must
+ * still reach the modules: a full mixer request and a tempo map fetch
+ * against the simulated DPS both complete. Runs MidiFun on the virtual
+ * device in a child JVM, exits non-zero on failure.
+ */
+public class MaskedReplyTest {
+
+	public static void main(String[] args) throws Exception {
+		File home = new File(System.getProperty("java.io.tmpdir"), "midifun-test-home");
+		home.mkdirs();
+		ProcessBuilder pb = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+			"-Duser.home=" + home, "-Dmidifun.virtual=12", "-cp", System.getProperty("java.class.path"),
+			"com.ashbysoft.MidiFun");
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		OutputStream in = p.getOutputStream();
+		in.write("filter drop sysex\nmix all\nwait\ntempo get\nwait\n\n".getBytes("US-ASCII"));
+		in.flush();
+		StringBuffer out = new StringBuffer();
+		BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), "US-ASCII"));
+		String line;
+		while ((line = r.readLine()) != null)
+			out.append(line).append('\n');
+		if (!p.waitFor(30, TimeUnit.SECONDS)) {
+			p.destroyForcibly();
+			fail("MidiFun did not exit", out);
+		}
+		String s = out.toString();
+		check(s.contains("Mixer state received"), "mixer replies did not complete", s);
+		check(!s.contains("Mixer state incomplete"), "mixer requests timed out", s);
+		check(s.contains("tempo map: 3 entries"), "tempo map not received", s);
+		check(!s.contains("RX: f0"), "sysex was shown", s);
+		System.out.println("MaskedReplyTest: ok");
+	}
+
+	private static void check(boolean ok, String what, String out) {
+		if (!ok)
+			fail(what, out);
+	}
+
+	private static void fail(String what, CharSequence out) {
+		System.out.println(out);
+		System.out.println("MaskedReplyTest: FAILED, " + what);
+		System.exit(1);
+	}
+}